@@ -0,0 +1,98 @@
+package io.ashutosh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+    HDDBackup.backupAssets on the synthetic trees of SourceTree
+    --------------------------------------
+    coldFullCopy: every file is copied into an empty destination
+    warmNoOp:     the destination is already up to date, the run only walks and compares
+
+    Every measurement is one whole run, as a run shuts its copy engine down at the end.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HDDBackupBenchmark {
+
+    private static final int copyThreads = 4;
+    private static final int maxInFlightCopies = 4;
+
+    @Param({"TINY", "HUGE", "DEEP"})
+    public SourceTree.Shape shape;
+
+    @Param({"tmpfs", "disk"})
+    public String location;
+
+    private Path srcRoot;
+    private Path destRoot;
+
+    @Setup(Level.Trial)
+    public void createTree() throws IOException {
+        this.srcRoot = SourceTree.create(SourceTree.baseDir(this.location), this.shape);
+        this.destRoot = this.srcRoot.resolveSibling(this.srcRoot.getFileName() + "-dest");
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() throws IOException {
+        SourceTree.delete(this.srcRoot);
+        SourceTree.delete(this.destRoot);
+    }
+
+    private List<String> backup() {
+        HDDBackup hddBackup = new HDDBackup(this.srcRoot.toString(), this.destRoot.toString(), copyThreads, maxInFlightCopies);
+        List<String> copiedFiles = new ArrayList<>();
+        List<String> failedPaths = new ArrayList<>();
+        hddBackup.backupAssets(new String[]{SourceTree.assetName}, copiedFiles, failedPaths);
+        if (!failedPaths.isEmpty()) throw new IllegalStateException("Backup failed for " + failedPaths);
+        return copiedFiles;
+    }
+
+    @State(Scope.Benchmark)
+    public static class EmptyDestination {
+        @Setup(Level.Iteration)
+        public void clear(HDDBackupBenchmark benchmark) throws IOException {
+            SourceTree.delete(benchmark.destRoot);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class UpToDateDestination {
+        @Setup(Level.Trial)
+        public void fill(HDDBackupBenchmark benchmark) throws IOException {
+            SourceTree.delete(benchmark.destRoot);
+            benchmark.backup();
+        }
+    }
+
+    @Benchmark
+    public List<String> coldFullCopy(EmptyDestination destination) {
+        return backup();
+    }
+
+    @Benchmark
+    public List<String> warmNoOp(UpToDateDestination destination) {
+        return backup();
+    }
+}
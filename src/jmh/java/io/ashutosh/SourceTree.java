@@ -0,0 +1,81 @@
+package io.ashutosh;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/*
+    Synthetic source trees for the benchmarks, the same shape always has the same files and contents
+    --------------------------------------
+    TINY: 20000 files of 512 B to 4 KB in 200 folders
+    HUGE: 6 files of 128 MB
+    DEEP: 64 chains of 24 nested folders with 4 files of 16 KB on every level
+
+    tmpfs trees go to /dev/shm, disk trees to -Dbench.diskDir (the temporary directory by default).
+ */
+public class SourceTree {
+
+    public enum Shape {TINY, HUGE, DEEP}
+
+    static final String assetName = "asset";
+
+    private static final int writeBufferSize = 1024 * 1024;
+
+    public static Path baseDir(String location) {
+        if (location.equals("tmpfs")) return Paths.get("/dev/shm");
+        return Paths.get(System.getProperty("bench.diskDir", System.getProperty("java.io.tmpdir")));
+    }
+
+    // Creates a fresh folder under baseDir holding the tree in its assetName folder
+    public static Path create(Path baseDir, Shape shape) throws IOException {
+        Path root = Files.createTempDirectory(baseDir, "udev-backup-bench-" + shape.name().toLowerCase() + "-");
+        Path asset = root.resolve(assetName);
+        Random random = new Random(shape.ordinal());
+
+        switch (shape) {
+            case TINY:
+                for (int idx = 0; idx < 20000; idx++) {
+                    writeFile(asset.resolve("folder" + (idx % 200)).resolve("file" + idx + ".txt"), 512 + random.nextInt(3584), random);
+                }
+                break;
+            case HUGE:
+                for (int idx = 0; idx < 6; idx++) {
+                    writeFile(asset.resolve("file" + idx + ".bin"), 128L * 1024 * 1024, random);
+                }
+                break;
+            case DEEP:
+                for (int chain = 0; chain < 64; chain++) {
+                    Path folder = asset.resolve("chain" + chain);
+                    for (int level = 0; level < 24; level++) {
+                        folder = folder.resolve("level" + level);
+                        for (int idx = 0; idx < 4; idx++) writeFile(folder.resolve("file" + idx + ".dat"), 16 * 1024, random);
+                    }
+                }
+                break;
+        }
+        return root;
+    }
+
+    private static void writeFile(Path path, long size, Random random) throws IOException {
+        Files.createDirectories(path.getParent());
+        byte[] buffer = new byte[(int) Math.min(size, writeBufferSize)];
+        try (OutputStream outputStream = Files.newOutputStream(path)) {
+            for (long written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                outputStream.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+            }
+        }
+    }
+
+    public static void delete(Path path) throws IOException {
+        if (!Files.exists(path)) return;
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path entry : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) Files.delete(entry);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package io.ashutosh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Utils.fileTimeComparator, called once per unchanged file, and Utils.messageTextBuilder for long lists
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UtilsBenchmark {
+
+    private static final int timePairs = 1024;
+
+    @State(Scope.Thread)
+    public static class FileTimes {
+        final FileTime[] first = new FileTime[timePairs];
+        final FileTime[] second = new FileTime[timePairs];
+
+        @Setup
+        public void create() {
+            Random random = new Random(0);
+            for (int idx = 0; idx < timePairs; idx++) {
+                long millis = 1_600_000_000_000L + random.nextInt(Integer.MAX_VALUE);
+                this.first[idx] = FileTime.fromMillis(millis);
+                // Mostly the same second, like the files of a warm run
+                this.second[idx] = FileTime.fromMillis(idx % 8 == 0 ? millis + 5000 : millis - millis % 1000);
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Message {
+        @Param({"50", "10000", "100000"})
+        public int listSize;
+
+        List<String> copiedFiles;
+        List<String> failedPaths;
+        BackupReport report;
+
+        @Setup
+        public void create() {
+            Random random = new Random(0);
+            this.copiedFiles = new ArrayList<>(this.listSize);
+            this.failedPaths = new ArrayList<>();
+            this.report = new BackupReport();
+            for (int idx = 0; idx < this.listSize; idx++) {
+                String fileName = "folder" + (idx % 500) + "/sub" + (idx % 7) + "/file <" + idx + ">.txt";
+                this.copiedFiles.add(fileName);
+                this.report.add(new FileInfo(fileName, random.nextInt(1 << 24), 0, false));
+                if (idx % 100 == 0) this.failedPaths.add("/media/source/" + fileName);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(timePairs)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void fileTimeComparator(FileTimes fileTimes, Blackhole blackhole) {
+        for (int idx = 0; idx < timePairs; idx++) {
+            blackhole.consume(Utils.fileTimeComparator(fileTimes.first[idx], fileTimes.second[idx]));
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String messageTextBuilder(Message message) {
+        return Utils.messageTextBuilder(message.copiedFiles, message.failedPaths, false, message.report);
+    }
+}
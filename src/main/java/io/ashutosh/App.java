@@ -1,10 +1,16 @@
 package io.ashutosh;
 
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.openqa.selenium.chrome.ChromeOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
 
 
@@ -22,6 +28,26 @@ public class App {
     private static final String username = System.getenv("PCLOUD_USERNAME");
     private static final String password = System.getenv("PCLOUD_PASSWORD");
 
+    /*
+        Variables related to the pCloud upload:
+        --------------------------------------
+        uploader: selenium (web interface in headless Chrome, recorded to a video) or api (pCloud HTTP API). Both
+                  upload only the files the HDD backup copied once a run uploaded everything without failures. The
+                  selenium one puts whole assets into the root folder of pCloud when it can't open the folders of the
+                  changed files
+        pcloudApiHost: API endpoint, https://api.pcloud.com for US and https://eapi.pcloud.com for EU accounts. The
+                       selenium uploader opens the folders of changed files through it
+        cloudPath: pCloud folder the assets are uploaded into by the api uploader
+        uploadThreads: Number of files uploaded at the same time by the api uploader
+        uploadChunkMB: Size of the chunks large files are uploaded in
+     */
+
+    private static final String uploader = System.getProperty("uploader", "selenium");
+    private static final String pcloudApiHost = System.getProperty("pcloudApiHost", "https://api.pcloud.com");
+    private static final String cloudPath = System.getProperty("cloudPath", "/");
+    private static final int uploadThreads = Integer.getInteger("uploadThreads", 4);
+    private static final int uploadChunkMB = Integer.getInteger("uploadChunkMB", 8);
+
     /*
         Variables related to files and folders to be backed up:
         --------------------------------------
@@ -34,17 +60,80 @@ public class App {
     private static final String destPath = System.getProperty("destPath");
     private static final String[] assets = System.getProperty("assets").split(";");
 
+    /*
+        Variables related to the copy engine:
+        --------------------------------------
+        copyThreads: Number of worker threads doing the stat, compare and copy work
+        maxInFlightCopies: Maximum number of files being written to destPath at the same time
+        useManifest: Compare against the manifest kept on destPath instead of reading attributes of every file there
+        deltaThresholdMB: Modified files of at least this size are updated block by block, 0 disables it
+        deltaBlockSizeKB: Size of the blocks compared during delta transfer
+        copyMethod: auto (reflink, then kernel transfer, then buffers), transfer or buffered
+        copyBufferKB: Size of the direct buffer used for buffered copies
+        fsyncPolicy: none, file (fsync every file) or batch (fsync every fsyncBatchSize files),
+                     files replacing an older copy are fsynced before the replace in any case
+        storeMode: plain (copy of the assets), dedup (content addressed repository inside destPath),
+                   snapshot (dated generations sharing unchanged files through hard links)
+                   or pack (small files appended into pack files, the others copied as in plain)
+        chunkSizeKB: Average chunk size of the dedup repository
+        packThresholdKB: Files smaller than this go into the packs in pack mode
+        compress: Store copies compressed in blocks (as <file>.udz) in plain and pack mode, unless they don't shrink
+        compressionLevel: Deflate level of the compressed copies, 1 (fastest) to 9
+        retainHourly, retainDaily, retainWeekly: Number of generations of each kind kept in snapshot mode
+        mirror: Delete (or move) the copies of files deleted (or renamed) at the source, in plain mode
+        trashDays: Days the copies deleted in mirror mode are kept in destPath/.udev-backup/trash, 0 deletes them
+        verifyCopies: Read every copy back and compare its CRC32C with the source. The copy is still in the page cache
+                      then, so this catches copy errors, the scrub of the next run reads it back from the disk
+        scrubBudgetSeconds: Time spent on each run re-reading older backed up files to detect bit-rot, before anything
+                            is copied. 0 (default) disables it, e.g. 60 checks the whole backup over a few plug-ins
+        useChangeJournal: Walk only the folders recorded by a running watcher (started with --watch) since the last run
+        seekOrder: auto (when the source or destPath is on a spinning disk), on or off. Copies one file at a time,
+                   folder by folder in inode order
+        ioThrottle: auto (when the source or destPath is on a spinning disk), on or off. Slows copies down while other
+                    processes read from the disks and these are slower than ioLatencyTargetMs per request, off lets
+                    unattended runs go at full speed
+        ioLatencyTargetMs: Average time per disk request above which throttled copies back off
+     */
+
+    private static final int copyThreads = Integer.getInteger("copyThreads", Runtime.getRuntime().availableProcessors());
+    private static final int maxInFlightCopies = Integer.getInteger("maxInFlightCopies", 4);
+    private static final boolean useManifest = Boolean.parseBoolean(System.getProperty("useManifest", "true"));
+    private static final long deltaThresholdMB = Long.getLong("deltaThresholdMB", 64);
+    private static final int deltaBlockSizeKB = Integer.getInteger("deltaBlockSizeKB", 128);
+    private static final String copyMethod = System.getProperty("copyMethod", "auto");
+    private static final int copyBufferKB = Integer.getInteger("copyBufferKB", 1024);
+    private static final String fsyncPolicy = System.getProperty("fsyncPolicy", "batch");
+    private static final int fsyncBatchSize = Integer.getInteger("fsyncBatchSize", 256);
+    private static final String storeMode = System.getProperty("storeMode", "plain");
+    private static final int chunkSizeKB = Integer.getInteger("chunkSizeKB", 1024);
+    private static final int packThresholdKB = Integer.getInteger("packThresholdKB", 256);
+    private static final boolean compress = Boolean.parseBoolean(System.getProperty("compress", "false"));
+    private static final int compressionLevel = Integer.getInteger("compressionLevel", 1);
+    private static final int retainHourly = Integer.getInteger("retainHourly", 24);
+    private static final int retainDaily = Integer.getInteger("retainDaily", 30);
+    private static final int retainWeekly = Integer.getInteger("retainWeekly", 26);
+    private static final boolean mirror = Boolean.parseBoolean(System.getProperty("mirror", "false"));
+    private static final int trashDays = Integer.getInteger("trashDays", 30);
+    private static final boolean verifyCopies = Boolean.parseBoolean(System.getProperty("verifyCopies", "true"));
+    private static final long scrubBudgetSeconds = Long.getLong("scrubBudgetSeconds", 0);
+    private static final boolean useChangeJournal = Boolean.parseBoolean(System.getProperty("useChangeJournal", "true"));
+    private static final String seekOrder = System.getProperty("seekOrder", "auto");
+    private static final String ioThrottle = System.getProperty("ioThrottle", "auto");
+    private static final long ioLatencyTargetMs = Long.getLong("ioLatencyTargetMs", 50);
+
     /*
         Variables related to Video Recording:
         --------------------------------------
-        tmpDir: Location where the frames generated will be kept
         outputDir: Location where the video recording generated will be kept
         pCloudVideoFileName: Name of the video recording generated
+        recordingMaxFps: Frame rate of the video, frames arriving faster replace each other
+        recordingBufferMB: Memory the screencast frames waiting for the encoder may take, frames beyond it are dropped
      */
 
-    private static final String tmpDir = "/tmp/Udev-Backup-Automation";
     private static final String outputDir = System.getProperty("outputDir");
     private static final String pCloudVideoFileName = "pCloud_Backup.mp4";
+    private static final int recordingMaxFps = Integer.getInteger("recordingMaxFps", 10);
+    private static final int recordingBufferMB = Integer.getInteger("recordingBufferMB", 64);
 
     /*
         Variables related to Telegram:
@@ -56,38 +145,133 @@ public class App {
     private static final String telegramReceiverID = System.getProperty("telegramReceiverID");
     private static final String botToken = System.getenv("BOT_TOKEN");
 
+    /*
+        Variables related to the daemon mode:
+        --------------------------------------
+        daemonSocket: Unix domain socket the daemon (started with --daemon) takes backup requests on, each request
+                      names the destPath of the disk that was plugged in
+     */
+
+    private static final String daemonSocket = System.getProperty("daemonSocket", outputDir + "/udev-backup.sock");
+
+    /*
+        Variables related to restoring:
+        --------------------------------------
+        restorePath: Folder the files restored with --restore <path> are written to, below their path relative to
+                     srcPath. Read from destPath in the storeMode it was backed up with
+     */
+
+    private static final String restorePath = System.getProperty("restorePath", outputDir + "/restored");
+
     public static void main(String[] args) {
-        try {
-            // List containing names of files that we were backed up
-            List<String> copiedFiles = new ArrayList<>();
-
-            // List containing paths where something went wrong and requires some attention or re-run
-            List<String> failedPaths = new ArrayList<>();
-
-            HDDBackup hddBackup = new HDDBackup(srcPath, destPath);
-            String message = hddBackup.backupAssets(assets, copiedFiles, failedPaths);
-
-            Telegram telegram = new Telegram(telegramReceiverID, botToken);
-            telegram.sendMessageUpdate(message);
-
-            try {
-                PCloudBackup pCloudBackup = PCloudBackup.getInstance(srcPath, username, password);
-                pCloudBackup.backupAssets(assets, tmpDir, outputDir, pCloudVideoFileName);
-                telegram.sendVideoUpdate(outputDir, pCloudVideoFileName);
-            } catch (RuntimeException e) {
-                telegram.sendMessageUpdate("<b>Backup Failed</b> ❌\n\n" +
-                        "<b><i>Check logs for what went wrong in pCloud Backup</i></b>\n");
-                throw e;
+        // Runs between plug events and records which folders changed, the backup itself is started by udev
+        if (args.length > 0 && args[0].equals("--watch")) {
+            new ChangeWatcher(srcPath, assets, new ChangeJournal(Paths.get(outputDir))).run();
+            return;
+        }
+
+        // Stays resident and runs a backup whenever the udev unit sends a trigger, see BackupDaemon
+        if (args.length > 0 && args[0].equals("--daemon")) {
+            CloudBackup cloudBackup = cloudBackup();
+            Runtime.getRuntime().addShutdownHook(new Thread(cloudBackup::shutdown));
+            new BackupDaemon(Paths.get(daemonSocket), destination -> backup(cloudBackup, destination == null ? destPath : destination)).run();
+            return;
+        }
+
+        // Writes the backup of a file or folder (relative to srcPath) out to restorePath
+        if (args.length > 0 && args[0].equals("--restore")) {
+            if (args.length < 2) {
+                logger.error("Usage: --restore <path relative to srcPath>");
+                System.exit(2);
             }
+            int exitCode = restore(args[1]);
+            if (exitCode != 0) System.exit(exitCode);
+            return;
+        }
+
+        // Loads the classes of a run without running one, used to create the class data sharing archive
+        if (args.length > 0 && args[0].equals("--warmup")) {
+            warmUp();
+            return;
+        }
+
+        CloudBackup cloudBackup = cloudBackup();
+        int exitCode = backup(cloudBackup, destPath);
+        cloudBackup.shutdown();
+        if (exitCode != 0) System.exit(exitCode);
+    }
+
+    private static CloudBackup cloudBackup() {
+        if (uploader.equals("api")) {
+            return new PCloudApiUploader(srcPath, username, password, pcloudApiHost,
+                    cloudPath, outputDir, uploadThreads, uploadChunkMB * 1024 * 1024);
+        }
+        PCloudBackup pCloudBackup = PCloudBackup.getInstance(srcPath, username, password);
+        pCloudBackup.setRecording(outputDir, pCloudVideoFileName);
+        pCloudBackup.setApiHost(pcloudApiHost);
+        pCloudBackup.setRecordingLimits(recordingMaxFps, recordingBufferMB * 1024L * 1024);
+        return pCloudBackup;
+    }
+
+    // Returns the exit code: 1 if any path failed, destPath could not be created, bit-rot was found or pCloud had failures
+    private static int backup(CloudBackup cloudBackup, String destPath) {
+        RunMetrics.begin();
+        int exitCode;
+        try {
+            HDDBackup hddBackup = hddBackup(destPath);
+            if (useChangeJournal) hddBackup.setChangeJournal(new ChangeJournal(Paths.get(outputDir)));
 
-            // If failed path is empty and pCloud executed successfully then only send 0 exit code for further processing
-            // failedPaths not empty or not being able to create destPath folder is exit code 1
-            if (!failedPaths.isEmpty() || message.contains("Error occurred while creating folder")) System.exit(1);
+            CloudSync cloudSync = new CloudSync(Paths.get(outputDir), uploader, cloudPath);
 
+            try (Notifier notifier = new Notifier(new Telegram(telegramReceiverID, botToken))) {
+                exitCode = new BackupOrchestrator(hddBackup, cloudBackup, cloudSync, notifier).run(assets);
+            }
         } catch (RuntimeException e) {
             logger.error(e.getMessage(), e);
             logger.error("Abrupt shutdown!");
-            System.exit(1);
+            exitCode = 1;
+        }
+        RunMetrics.current().write(Paths.get(outputDir), exitCode);
+        return exitCode;
+    }
+
+    private static HDDBackup hddBackup(String destPath) {
+        HDDBackup hddBackup = new HDDBackup(srcPath, destPath, copyThreads, maxInFlightCopies);
+        hddBackup.setUseManifest(useManifest);
+        hddBackup.setDeltaTransfer(deltaThresholdMB * 1024 * 1024, deltaBlockSizeKB * 1024);
+        hddBackup.setCopyOptions(copyMethod, copyBufferKB * 1024,
+                FileCopier.FsyncPolicy.valueOf(fsyncPolicy.toUpperCase()), fsyncBatchSize);
+        hddBackup.setStoreMode(HDDBackup.StoreMode.valueOf(storeMode.toUpperCase()), chunkSizeKB * 1024);
+        hddBackup.setPackThreshold(packThresholdKB * 1024L);
+        hddBackup.setCompression(compress, compressionLevel);
+        hddBackup.setSnapshotRetention(retainHourly, retainDaily, retainWeekly);
+        hddBackup.setMirror(mirror, trashDays);
+        hddBackup.setDiskScheduling(HDDBackup.Scheduling.valueOf(seekOrder.toUpperCase()),
+                HDDBackup.Scheduling.valueOf(ioThrottle.toUpperCase()), ioLatencyTargetMs);
+        hddBackup.setVerification(verifyCopies, scrubBudgetSeconds * 1000, maxInFlightCopies);
+        return hddBackup;
+    }
+
+    // Returns the exit code: 1 if the backup holds nothing at path or a file of it could not be restored
+    private static int restore(String path) {
+        try {
+            List<String> failedPaths = hddBackup(destPath).restore(path, Paths.get(restorePath));
+            if (failedPaths.isEmpty()) return 0;
+            logger.error("Unable to restore {} files: {}", failedPaths.size(), failedPaths);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Unable to restore {}", path, e);
+        }
+        return 1;
+    }
+
+    private static void warmUp() {
+        new ObjectMapper().createObjectNode().put("warmup", true).toString();
+        try (CloseableHttpClient client = HttpClients.createDefault()) {
+            logger.info("Loaded HTTP client {}", client.getClass().getSimpleName());
+        } catch (IOException e) {
+            logger.warn("Unable to close HTTP client", e);
         }
+        new ChromeOptions().addArguments("--headless=new");
+        Utils.messageTextBuilder(Collections.emptyList(), Collections.emptyList(), false, new BackupReport());
     }
 }
@@ -0,0 +1,92 @@
+package io.ashutosh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.function.ToIntFunction;
+
+/*
+    Keeps the JVM of the backup running between plug-ins and takes backup requests over a Unix domain socket
+    --------------------------------------
+    Request:  one line "backup <destPath>", the destination the trigger found the disk mounted at. A plain "backup"
+              falls back to the destPath the daemon was started with
+    Response: one line "exit <code>" once the backup finished, with the exit code the one-shot run would have had
+
+    Requests are handled one after the other, a trigger arriving during a backup waits for it to finish.
+ */
+public class BackupDaemon {
+
+    private static final Logger logger = LoggerFactory.getLogger(BackupDaemon.class);
+
+    private final Path socketPath;
+    // Runs a backup to the given destPath, null for the default one, and returns its exit code
+    private final ToIntFunction<String> backup;
+
+    public BackupDaemon(Path socketPath, ToIntFunction<String> backup) {
+        this.socketPath = socketPath;
+        this.backup = backup;
+    }
+
+    public void run() {
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            // Left behind if the previous daemon was killed
+            Files.deleteIfExists(this.socketPath);
+            server.bind(UnixDomainSocketAddress.of(this.socketPath));
+            // Anyone able to connect can start a backup
+            Files.setPosixFilePermissions(this.socketPath, PosixFilePermissions.fromString("rw-------"));
+            logger.info("Waiting for backup requests on {}", this.socketPath);
+
+            while (true) {
+                try (SocketChannel client = server.accept()) {
+                    handle(client);
+                } catch (IOException e) {
+                    logger.warn("Lost connection to the backup trigger", e);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Unable to listen on {}", this.socketPath, e);
+            throw new RuntimeException(e);
+        } finally {
+            try {
+                Files.deleteIfExists(this.socketPath);
+            } catch (IOException e) {
+                logger.warn("Unable to remove {}", this.socketPath, e);
+            }
+        }
+    }
+
+    private void handle(SocketChannel client) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(client), StandardCharsets.UTF_8));
+        String request = reader.readLine();
+        if (request == null) return;
+
+        String response;
+        String command = request.strip();
+        if (command.equals("backup")) {
+            logger.info("Backup requested");
+            response = "exit " + this.backup.applyAsInt(null) + "\n";
+        } else if (command.startsWith("backup ")) {
+            String destination = command.substring("backup ".length()).strip();
+            logger.info("Backup to {} requested", destination);
+            response = "exit " + this.backup.applyAsInt(destination) + "\n";
+        } else {
+            logger.warn("Unknown request: {}", request);
+            response = "error unknown request\n";
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(response.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) client.write(buffer);
+    }
+}
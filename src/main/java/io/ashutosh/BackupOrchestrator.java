@@ -0,0 +1,134 @@
+package io.ashutosh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Runs the HDD and the cloud stage of a backup side by side
+    --------------------------------------
+    The HDD stage is bound by the disk and the cloud stage by the network, so they overlap:
+        1. the cloud stage prepares (browser startup, login) while the HDD stage copies
+        2. if the cloud is in sync it waits for the change set of the HDD stage, otherwise it compares every
+           asset right away without waiting
+        3. both results go out as one report through the notification queue
+ */
+public class BackupOrchestrator {
+
+    private static final Logger logger = LoggerFactory.getLogger(BackupOrchestrator.class);
+
+    private final HDDBackup hddBackup;
+    private final CloudBackup cloudBackup;
+    private final CloudSync cloudSync;
+    private final Notifier notifier;
+
+    // Written by the HDD stage, read once it completed
+    private final List<String> copiedFiles = new ArrayList<>();
+    private final List<String> failedPaths = new ArrayList<>();
+    private boolean hddReliable = false;
+
+    public BackupOrchestrator(HDDBackup hddBackup, CloudBackup cloudBackup, CloudSync cloudSync, Notifier notifier) {
+        this.hddBackup = hddBackup;
+        this.cloudBackup = cloudBackup;
+        this.cloudSync = cloudSync;
+        this.notifier = notifier;
+    }
+
+    private String hddStage(String[] assets) {
+        String message = this.hddBackup.backupAssets(assets, this.copiedFiles, this.failedPaths);
+        // The files copied to the HDD are what the cloud is missing, unless the HDD backup could not tell
+        this.cloudSync.addPending(this.copiedFiles);
+        this.hddReliable = this.failedPaths.isEmpty() && !message.contains("Error occurred while creating folder");
+        return message;
+    }
+
+    private String cloudStage(String[] assets, CompletableFuture<String> hdd) {
+        try {
+            this.cloudBackup.prepare();
+
+            if (this.cloudSync.inSync()) {
+                logger.info("Waiting for the change set of the HDD backup");
+                if (!awaitQuietly(hdd)) this.cloudSync.invalidate();
+            }
+            // Whatever is pending now is covered by this upload, anything the HDD stage adds later stays for next time
+            this.cloudSync.pending();
+            String message = this.cloudBackup.upload(assets, this.cloudSync);
+
+            // The pending list is only rewritten once the HDD stage no longer appends to it
+            awaitQuietly(hdd);
+            if (!this.cloudBackup.hasFailures()) {
+                this.cloudSync.completed();
+                if (!this.hddReliable) this.cloudSync.invalidate();
+            }
+            return message;
+        } finally {
+            this.cloudBackup.close();
+        }
+    }
+
+    // Returns false if the stage ended with an exception, which is reported by run()
+    private static boolean awaitQuietly(CompletableFuture<String> stage) {
+        try {
+            stage.join();
+            return true;
+        } catch (CompletionException e) {
+            return false;
+        }
+    }
+
+    // Returns the exit code: 0 only if both stages went through without anything needing attention
+    public int run(String[] assets) {
+        AtomicInteger threadNum = new AtomicInteger();
+        ExecutorService stages = Executors.newFixedThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "stage-" + threadNum.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            CompletableFuture<String> hdd = CompletableFuture.supplyAsync(() -> hddStage(assets), stages);
+            CompletableFuture<String> cloud = CompletableFuture.supplyAsync(() -> cloudStage(assets, hdd), stages);
+
+            boolean failed = false;
+            StringBuilder report = new StringBuilder();
+            try {
+                report.append(hdd.join());
+                failed = !this.failedPaths.isEmpty() || !this.hddBackup.getCorruptedFiles().isEmpty() || !this.hddReliable;
+            } catch (CompletionException e) {
+                logger.error("Hard Disk backup failed", e.getCause());
+                report.append("<b>Backup Failed</b> ❌\n\n" +
+                        "<b><i>Check logs for what went wrong in Hard Disk Backup</i></b>\n");
+                failed = true;
+            }
+
+            report.append("\n");
+            try {
+                report.append(cloud.join());
+                failed |= this.cloudBackup.hasFailures();
+            } catch (CompletionException e) {
+                logger.error("pCloud backup failed", e.getCause());
+                report.append("<b>Backup Failed</b> ❌\n\n" +
+                        "<b><i>Check logs for what went wrong in pCloud Backup</i></b>\n");
+                failed = true;
+            }
+
+            this.notifier.sendMessageUpdate(report.toString());
+            Path fileList = this.hddBackup.getFileListAttachment();
+            if (fileList != null) {
+                this.notifier.sendDocumentUpdate(fileList, "backed-up-files.txt.gz",
+                        "Files backed up in Hard Disk: <b>" + this.copiedFiles.size() + "</b>");
+            }
+            this.cloudBackup.sendAttachments(this.notifier);
+            return failed ? 1 : 0;
+        } finally {
+            stages.shutdown();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package io.ashutosh;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/*
+    Summary of the files copied to the HDD, collected while they are copied
+    --------------------------------------
+    Up to listLimit files are listed in the Telegram message one by one. Above that the message holds the totals,
+    the folders with the most changed bytes and the largest files, and the full list goes out as a gzip attachment.
+ */
+public class BackupReport {
+
+    static final int listLimit = 50;
+    private static final int topCount = 10;
+
+    private static class Aggregate {
+        final LongAdder files = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+    }
+
+    private final Map<String, Aggregate> folders = new ConcurrentHashMap<>();
+    // Smallest on top, so the largest topCount files stay
+    private final PriorityQueue<FileInfo> largest = new PriorityQueue<>(Comparator.comparingLong(fileInfo -> fileInfo.size));
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    // Called by the copy workers for every file that made it into the backup
+    public void add(FileInfo fileInfo) {
+        int slash = fileInfo.fileName.lastIndexOf('/');
+        Aggregate folder = this.folders.computeIfAbsent(slash < 0 ? "." : fileInfo.fileName.substring(0, slash), name -> new Aggregate());
+        folder.files.increment();
+        folder.bytes.add(fileInfo.size);
+        this.files.increment();
+        this.bytes.add(fileInfo.size);
+        synchronized (this.largest) {
+            if (this.largest.size() < topCount) this.largest.add(fileInfo);
+            else if (this.largest.peek().size < fileInfo.size) {
+                this.largest.poll();
+                this.largest.add(fileInfo);
+            }
+        }
+    }
+
+    public String summary() {
+        StringBuilder text = new StringBuilder();
+        text.append("\n");
+        text.append("<b><i>").append(this.files.sum()).append(" files, ").append(formatBytes(this.bytes.sum()))
+                .append(" backed up in Hard Disk</i></b>\n");
+
+        List<Map.Entry<String, Aggregate>> topFolders = new ArrayList<>(this.folders.entrySet());
+        topFolders.sort(Comparator.comparingLong((Map.Entry<String, Aggregate> entry) -> entry.getValue().bytes.sum()).reversed());
+        text.append("\n<b><i>Folders with the most changes:</i></b>\n");
+        for (int idx = 0; idx < Math.min(topCount, topFolders.size()); idx++) {
+            Aggregate folder = topFolders.get(idx).getValue();
+            text.append(idx + 1).append(". ").append(Utils.escapeHtml(topFolders.get(idx).getKey())).append(": ")
+                    .append(folder.files.sum()).append(" files, ").append(formatBytes(folder.bytes.sum())).append("\n");
+        }
+        if (topFolders.size() > topCount) text.append("<i>and ").append(topFolders.size() - topCount).append(" more folders</i>\n");
+
+        List<FileInfo> largestFiles;
+        synchronized (this.largest) {
+            largestFiles = new ArrayList<>(this.largest);
+        }
+        largestFiles.sort(Comparator.comparingLong((FileInfo fileInfo) -> fileInfo.size).reversed());
+        text.append("\n<b><i>Largest files:</i></b>\n");
+        for (int idx = 0; idx < largestFiles.size(); idx++) {
+            text.append(idx + 1).append(". ").append(Utils.escapeHtml(largestFiles.get(idx).fileName)).append(": ")
+                    .append(formatBytes(largestFiles.get(idx).size)).append("\n");
+        }
+        return text.toString();
+    }
+
+    // Full list of copied files, one per line, gzipped into a temporary file the caller deletes once it is sent
+    public Path writeFileList(List<String> copiedFiles) throws IOException {
+        Path listPath = Files.createTempFile("copied-files-", ".txt.gz");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(Files.newOutputStream(listPath), 1 << 16), StandardCharsets.UTF_8))) {
+            for (String fileName : copiedFiles) writer.write(fileName + "\n");
+        } catch (IOException e) {
+            Files.deleteIfExists(listPath);
+            throw e;
+        }
+        return listPath;
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format("%.1f KB", bytes / 1024.0);
+        if (bytes < 1024L * 1024 * 1024) return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+}
@@ -0,0 +1,286 @@
+package io.ashutosh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+    Compresses files on their way to destPath in independent blocks, spread over all cores
+    --------------------------------------
+    <file>.udz: header   magic(int) version(int) blockSize(int)
+                blocks   each block deflated on its own (zlib), or stored as it is when deflating doesn't shrink it
+                table    count * [offset(long) length(int) stored(byte)]
+                trailer  originalSize(long) tableOffset(long) count(int) magic(int)
+
+    No block depends on another, so the blocks of a file are compressed and decompressed in parallel and any part of
+    a file can be read through the table without touching the rest.
+    Files that are compressed already (by extension, or because the first 64 KB hardly shrink) are copied as they are.
+ */
+public class BlockCompressor implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlockCompressor.class);
+
+    static final String suffix = ".udz";
+
+    private static final int magic = 0x55445A31; // "UDZ1"
+    private static final int version = 1;
+    private static final int headerSize = 12;
+    private static final int tableRecordSize = 8 + 4 + 1;
+    private static final int trailerSize = 8 + 8 + 4 + 4;
+    private static final int blockSize = 1024 * 1024;
+    private static final int sampleSize = 64 * 1024;
+    // Compressing the sample has to save at least this much for the file to be compressed
+    private static final double minSampleSaving = 0.1;
+    // Smaller files take a single cluster of a large exFAT disk either way
+    private static final long minSize = 64 * 1024;
+    private static final Set<String> compressedExtensions = Set.of(
+            "mp3", "flac", "ogg", "opus", "m4a", "aac", "jpg", "jpeg", "png", "gif", "webp", "heic", "avif",
+            "mp4", "mkv", "mov", "avi", "webm", "zip", "gz", "tgz", "xz", "bz2", "zst", "7z", "rar", "jar", "apk",
+            "pdf", "docx", "xlsx", "pptx", "epub", "udz");
+
+    private static class Block {
+        final byte[] data;
+        final int length;
+        final boolean stored;
+
+        Block(byte[] data, int length, boolean stored) {
+            this.data = data;
+            this.length = length;
+            this.stored = stored;
+        }
+    }
+
+    private final ExecutorService workers;
+    // Blocks of one file being compressed or written at the same time
+    private final int window;
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    private final LongAdder filesCompressed = new LongAdder();
+    private final LongAdder filesStored = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    public BlockCompressor(int level) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "compress-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.window = threads + 1;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+        logger.info("Compressing copies at level {} on {} threads", level, threads);
+    }
+
+    public static Path compressedPath(Path destFilePath) {
+        return destFilePath.resolveSibling(destFilePath.getFileName() + suffix);
+    }
+
+    private static boolean compressedByExtension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot >= 0 && compressedExtensions.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    // Fills buffer from the channel, returns the number of bytes read which is only short at the end of the file
+    private static int readBlock(FileChannel channel, byte[] buffer) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer);
+        while (target.hasRemaining() && channel.read(target) >= 0) {
+            // Keep reading
+        }
+        return target.position();
+    }
+
+    private Block deflate(byte[] data, int length) {
+        Deflater deflater = this.deflaters.get();
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        byte[] out = new byte[length];
+        int size = 0;
+        while (!deflater.finished() && size < out.length) size += deflater.deflate(out, size, out.length - size);
+        // Didn't fit in the size of the input, so it is kept as it is
+        if (!deflater.finished()) return new Block(data, length, true);
+        return new Block(out, size, false);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    // Writes srcFilePath compressed to compressedPath, returns false without writing anything if the file is not worth
+    // compressing. Attributes and durability are left to the caller
+    public boolean compress(Path srcFilePath, Path compressedPath, FileInfo fileInfo) throws IOException {
+        if (fileInfo.size < minSize || compressedByExtension(fileInfo.fileName)) {
+            this.filesStored.increment();
+            return false;
+        }
+
+        try (FileChannel src = FileChannel.open(srcFilePath, StandardOpenOption.READ)) {
+            byte[] first = new byte[blockSize];
+            int firstLength = readBlock(src, first);
+            int sampleLength = Math.min(sampleSize, firstLength);
+            Block sample = deflate(first, sampleLength);
+            if (sample.stored || sample.length > sampleLength * (1 - minSampleSaving)) {
+                this.filesStored.increment();
+                return false;
+            }
+
+            List<long[]> table = new ArrayList<>();
+            long originalSize = 0;
+            long compressedSize;
+            try (FileChannel dest = FileChannel.open(compressedPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(headerSize);
+                header.putInt(magic).putInt(version).putInt(blockSize).flip();
+                writeFully(dest, header);
+                long position = headerSize;
+
+                // Blocks are compressed by the workers and written in order as they complete
+                Deque<Future<Block>> pending = new ArrayDeque<>();
+                byte[] data = first;
+                int length = firstLength;
+                while (length > 0 || !pending.isEmpty()) {
+                    if (length > 0) {
+                        byte[] blockData = data;
+                        int blockLength = length;
+                        originalSize += blockLength;
+                        pending.add(this.workers.submit(() -> deflate(blockData, blockLength)));
+                        data = new byte[blockSize];
+                        length = length < blockSize ? 0 : readBlock(src, data);
+                    }
+                    if (pending.size() >= this.window || (length == 0 && !pending.isEmpty())) {
+                        Block block = await(pending.poll());
+                        writeFully(dest, ByteBuffer.wrap(block.data, 0, block.length));
+                        table.add(new long[]{position, block.length, block.stored ? 1 : 0});
+                        position += block.length;
+                    }
+                }
+
+                ByteBuffer tail = ByteBuffer.allocate(table.size() * tableRecordSize + trailerSize);
+                for (long[] entry : table) tail.putLong(entry[0]).putInt((int) entry[1]).put((byte) entry[2]);
+                tail.putLong(originalSize).putLong(position).putInt(table.size()).putInt(magic).flip();
+                writeFully(dest, tail);
+                compressedSize = position + tail.limit();
+            }
+            this.bytesIn.add(originalSize);
+            this.bytesOut.add(compressedSize);
+            this.filesCompressed.increment();
+            RunMetrics.current().count("files_compressed");
+            RunMetrics.current().count("bytes_before_compression", originalSize);
+            RunMetrics.current().count("bytes_after_compression", compressedSize);
+            return true;
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to compress block", e.getCause());
+        }
+    }
+
+    private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException("Compressed file is truncated");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ByteBuffer trailer(FileChannel channel) throws IOException {
+        if (channel.size() < headerSize + trailerSize) throw new IOException("Not a compressed file");
+        ByteBuffer trailer = readAt(channel, channel.size() - trailerSize, trailerSize);
+        if (trailer.getInt(20) != magic) throw new IOException("Not a compressed file");
+        return trailer;
+    }
+
+    // Size of the file before it was compressed, read from the trailer
+    public static long originalSize(Path compressedPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(compressedPath, StandardOpenOption.READ)) {
+            return trailer(channel).getLong(0);
+        }
+    }
+
+    private byte[] inflate(ByteBuffer compressed, int originalLength) throws IOException {
+        Inflater inflater = this.inflaters.get();
+        inflater.reset();
+        inflater.setInput(compressed);
+        byte[] out = new byte[originalLength];
+        try {
+            int size = 0;
+            while (size < originalLength && !inflater.finished()) {
+                int inflated = inflater.inflate(out, size, originalLength - size);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                size += inflated;
+            }
+            if (size != originalLength) throw new IOException("Block inflated to " + size + " instead of " + originalLength + " bytes");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted block", e);
+        }
+        return out;
+    }
+
+    // Writes the original content out, the blocks are read and inflated by the workers and written in order
+    public void restore(Path compressedPath, OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(compressedPath, StandardOpenOption.READ)) {
+            ByteBuffer trailer = trailer(channel);
+            long originalSize = trailer.getLong(0);
+            long tableOffset = trailer.getLong(8);
+            int count = trailer.getInt(16);
+            ByteBuffer table = readAt(channel, tableOffset, count * tableRecordSize);
+
+            Deque<Future<byte[]>> pending = new ArrayDeque<>();
+            long remaining = originalSize;
+            for (int idx = 0; idx < count || !pending.isEmpty(); idx++) {
+                if (idx < count) {
+                    long offset = table.getLong();
+                    int length = table.getInt();
+                    boolean stored = table.get() != 0;
+                    int originalLength = (int) Math.min(blockSize, remaining);
+                    remaining -= originalLength;
+                    pending.add(this.workers.submit(() -> {
+                        ByteBuffer block = readAt(channel, offset, length);
+                        return stored ? block.array() : inflate(block, originalLength);
+                    }));
+                }
+                if (pending.size() >= this.window || (idx >= count - 1 && !pending.isEmpty())) out.write(await(pending.poll()));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        this.workers.shutdownNow();
+        logger.info("Compression: {} files compressed, {} copied as they are, {} bytes written for {} bytes",
+                this.filesCompressed.sum(), this.filesStored.sum(), this.bytesOut.sum(), this.bytesIn.sum());
+    }
+}
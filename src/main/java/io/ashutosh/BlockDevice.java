@@ -0,0 +1,92 @@
+package io.ashutosh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/*
+    Block device holding a path, as seen by the kernel in sysfs
+    --------------------------------------
+    /sys/dev/block/<major>:<minor>: found from the device number of the path, or through the name of its filesystem
+                                    (/dev/sdb1) when that number is an anonymous one (btrfs subvolumes)
+    queue/rotational:               1 for spinning disks, kept on the whole disk for partitions
+    stat:                           completed requests and the milliseconds spent on them, read and write, and the
+                                    512 byte sectors read
+
+    Paths on tmpfs, network or FUSE filesystems have no block device, of() returns null for them.
+ */
+public class BlockDevice {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlockDevice.class);
+
+    private static final Path sysBlock = Paths.get("/sys/dev/block");
+    private static final Path sysClassBlock = Paths.get("/sys/class/block");
+
+    private final String name;
+    private final Path sysPath;
+    private final boolean rotational;
+
+    private BlockDevice(String name, Path sysPath, boolean rotational) {
+        this.name = name;
+        this.sysPath = sysPath;
+        this.rotational = rotational;
+    }
+
+    public static BlockDevice of(Path path) {
+        try {
+            Path sysPath = null;
+            Object dev = Files.getAttribute(path, "unix:dev");
+            if (dev instanceof Long) {
+                long number = (Long) dev;
+                // Same split as the major() and minor() macros of glibc
+                long major = ((number >>> 8) & 0xfff) | ((number >>> 32) & ~0xfffL);
+                long minor = (number & 0xff) | ((number >>> 12) & ~0xffL);
+                Path candidate = sysBlock.resolve(major + ":" + minor);
+                if (Files.exists(candidate)) sysPath = candidate.toRealPath();
+            }
+            if (sysPath == null) {
+                FileStore store = Files.getFileStore(path);
+                if (store.name().startsWith("/dev/")) {
+                    Path candidate = sysClassBlock.resolve(Paths.get(store.name()).toRealPath().getFileName());
+                    if (Files.exists(candidate)) sysPath = candidate.toRealPath();
+                }
+            }
+            if (sysPath == null) return null;
+
+            // A partition shares the queue of its disk
+            Path queue = Files.exists(sysPath.resolve("partition")) ? sysPath.getParent().resolve("queue") : sysPath.resolve("queue");
+            boolean rotational = Files.exists(queue.resolve("rotational"))
+                    && Files.readString(queue.resolve("rotational")).trim().equals("1");
+            return new BlockDevice(sysPath.getFileName().toString(), sysPath, rotational);
+        } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+            logger.debug("No block device found for {}", path, e);
+            return null;
+        }
+    }
+
+    public String name() {
+        return this.name;
+    }
+
+    public boolean isRotational() {
+        return this.rotational;
+    }
+
+    // Requests completed and milliseconds spent on them so far, reads and writes together, and the bytes read
+    public long[] requests() throws IOException {
+        String[] fields = Files.readString(this.sysPath.resolve("stat")).trim().split("\\s+");
+        long completed = Long.parseLong(fields[0]) + Long.parseLong(fields[4]);
+        long millis = Long.parseLong(fields[3]) + Long.parseLong(fields[7]);
+        return new long[]{completed, millis, Long.parseLong(fields[2]) * 512};
+    }
+
+    @Override
+    public String toString() {
+        return this.name + (this.rotational ? " (rotational)" : "");
+    }
+}
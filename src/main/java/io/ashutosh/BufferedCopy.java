@@ -0,0 +1,40 @@
+package io.ashutosh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Plain read/write loop through a large direct buffer, works everywhere
+public class BufferedCopy implements CopyStrategy {
+
+    private final ThreadLocal<ByteBuffer> buffers;
+    private final IoThrottle throttle;
+
+    public BufferedCopy(int bufferSize, IoThrottle throttle) {
+        this.throttle = throttle;
+        this.buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(bufferSize));
+    }
+
+    @Override
+    public String name() {
+        return "buffered";
+    }
+
+    @Override
+    public boolean copy(Path srcFilePath, Path destFilePath, FileInfo fileInfo) throws IOException {
+        ByteBuffer buffer = this.buffers.get();
+        try (FileChannel src = FileChannel.open(srcFilePath, StandardOpenOption.READ);
+             FileChannel dest = FileChannel.open(destFilePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer.clear();
+            while (src.read(buffer) >= 0 || buffer.position() > 0) {
+                buffer.flip();
+                int written = dest.write(buffer);
+                buffer.compact();
+                if (this.throttle != null) this.throttle.acquire(written);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package io.ashutosh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+    Journal of the folders that changed since the last backup, kept at outputDir/change-journal
+    --------------------------------------
+    Written by ChangeWatcher, one entry per line, paths relative to srcPath:
+        D <folder>: entries directly inside the folder changed
+        R <folder>: the whole tree below the folder is new or was moved in
+        O:          changes may have been missed (watcher restarted, event queue overflowed)
+
+    The watcher holds a lock on change-journal.alive for as long as it runs. Without a live watcher, or with an
+    O entry, the journal cannot be trusted and the backup falls back to a full walk.
+
+    The journal only lists what changed since the last backup to one destination. change-journal.destination holds
+    the id of that destination, a backup to any other disk (new, swapped or wiped) walks everything.
+ */
+public class ChangeJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChangeJournal.class);
+
+    private final Path journalPath;
+    private final Path processingPath;
+    private final Path lockPath;
+    private final Path alivePath;
+    private final Path destinationPath;
+
+    // Folders to rescan, as read from the journal
+    public static class Scan {
+        final boolean full;
+        final Set<String> dirs = new HashSet<>();
+        final Set<String> trees = new HashSet<>();
+
+        private Scan(boolean full) {
+            this.full = full;
+        }
+
+        // true if the folder or one of its parents is a tree scope
+        private boolean underTree(String path) {
+            for (String tree : this.trees) {
+                if (path.equals(tree) || path.startsWith(tree + "/") || tree.isEmpty()) return true;
+            }
+            return false;
+        }
+
+        // Drops scopes already covered by a tree scope, so that no file is compared twice
+        private void normalise() {
+            Set<String> redundantTrees = new HashSet<>();
+            for (String tree : this.trees) {
+                for (String other : this.trees) {
+                    if (!other.equals(tree) && (tree.startsWith(other + "/") || other.isEmpty())) redundantTrees.add(tree);
+                }
+            }
+            this.trees.removeAll(redundantTrees);
+            this.dirs.removeIf(this::underTree);
+        }
+
+        // true if the file lies in one of the rescanned folders, i.e. its manifest entry gets rewritten
+        public boolean covers(String fileName) {
+            int slash = fileName.lastIndexOf('/');
+            String parent = slash < 0 ? "" : fileName.substring(0, slash);
+            return this.dirs.contains(parent) || underTree(parent);
+        }
+
+        public boolean isFull() {
+            return this.full;
+        }
+
+        public Set<String> dirs() {
+            return this.dirs;
+        }
+
+        public Set<String> trees() {
+            return this.trees;
+        }
+    }
+
+    public ChangeJournal(Path outputDir) {
+        this.journalPath = outputDir.resolve("change-journal");
+        this.processingPath = outputDir.resolve("change-journal.processing");
+        this.lockPath = outputDir.resolve("change-journal.lock");
+        this.alivePath = outputDir.resolve("change-journal.alive");
+        this.destinationPath = outputDir.resolve("change-journal.destination");
+    }
+
+    private FileChannel openLockChannel() throws IOException {
+        Files.createDirectories(this.lockPath.getParent());
+        return FileChannel.open(this.lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    // Called by the watcher, the returned lock marks it as alive until released
+    public FileLock markAlive() throws IOException {
+        Files.createDirectories(this.alivePath.getParent());
+        FileChannel channel = FileChannel.open(this.alivePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = channel.tryLock();
+        if (lock == null) {
+            channel.close();
+            throw new IOException("Another watcher is already running for " + this.journalPath);
+        }
+        return lock;
+    }
+
+    private boolean watcherAlive() {
+        if (!Files.exists(this.alivePath)) return false;
+        try (FileChannel channel = FileChannel.open(this.alivePath, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock();
+            if (lock == null) return true;
+            lock.release();
+            return false;
+        } catch (OverlappingFileLockException e) {
+            // Held by a watcher running inside this JVM
+            return true;
+        } catch (IOException e) {
+            logger.warn("Unable to check whether the change watcher is running", e);
+            return false;
+        }
+    }
+
+    public void append(Collection<String> entries) throws IOException {
+        if (entries.isEmpty()) return;
+        StringBuilder lines = new StringBuilder();
+        for (String entry : entries) lines.append(entry).append('\n');
+        // Closing the channel releases the lock
+        try (FileChannel lockChannel = openLockChannel()) {
+            lockChannel.lock();
+            Files.write(this.journalPath, lines.toString().getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+    }
+
+    public void markOverflow() throws IOException {
+        append(List.of("O"));
+    }
+
+    // Takes over the entries written so far, new entries keep going to a fresh journal
+    // A journal left behind by a failed backup is merged in, so its folders are rescanned as well
+    // destinationId identifies the disk backed up to, null if it is unknown
+    public Scan claim(String destinationId) {
+        try {
+            if (!watcherAlive()) {
+                logger.info("Change watcher is not running, walking every asset");
+                return new Scan(true);
+            }
+            try (FileChannel lockChannel = openLockChannel()) {
+                lockChannel.lock();
+                if (Files.exists(this.journalPath)) {
+                    if (Files.exists(this.processingPath)) {
+                        Files.write(this.processingPath, Files.readAllBytes(this.journalPath), StandardOpenOption.APPEND);
+                        Files.delete(this.journalPath);
+                    } else Files.move(this.journalPath, this.processingPath, StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+            String lastDestinationId = Files.exists(this.destinationPath) ? Files.readString(this.destinationPath).trim() : null;
+            if (destinationId == null || !destinationId.equals(lastDestinationId)) {
+                logger.info("Last backup with a change journal went to another destination, walking every asset");
+                return new Scan(true);
+            }
+            if (!Files.exists(this.processingPath)) {
+                // Watcher is alive and nothing changed
+                return new Scan(false);
+            }
+
+            Scan scan = new Scan(false);
+            for (String line : Files.readAllLines(this.processingPath, StandardCharsets.UTF_8)) {
+                if (line.equals("O")) {
+                    logger.info("Change journal overflowed or watcher restarted, walking every asset");
+                    return new Scan(true);
+                }
+                if (line.startsWith("D ")) scan.dirs.add(line.substring(2));
+                else if (line.startsWith("R ")) scan.trees.add(line.substring(2));
+            }
+            scan.normalise();
+            logger.info("Change journal lists {} changed folders and {} new trees", scan.dirs.size(), scan.trees.size());
+            return scan;
+        } catch (IOException e) {
+            logger.warn("Unable to read the change journal, walking every asset", e);
+            return new Scan(true);
+        }
+    }
+
+    // The claimed entries have been backed up to destinationId
+    public void complete(String destinationId) {
+        try {
+            Files.deleteIfExists(this.processingPath);
+        } catch (IOException e) {
+            logger.warn("Unable to remove processed change journal {}", this.processingPath, e);
+            return;
+        }
+        if (destinationId == null) return;
+        try {
+            Path tmpPath = this.destinationPath.resolveSibling(this.destinationPath.getFileName() + ".tmp");
+            Files.writeString(tmpPath, destinationId + "\n");
+            Files.move(tmpPath, this.destinationPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Only costs a full walk in the next run
+            logger.warn("Unable to record the destination of the change journal", e);
+        }
+    }
+}
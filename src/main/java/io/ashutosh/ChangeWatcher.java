@@ -0,0 +1,127 @@
+package io.ashutosh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Records the folders of the assets that change between two backups into the ChangeJournal
+public class ChangeWatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChangeWatcher.class);
+
+    // Events are collected for this long before being written, so a burst of writes costs one append
+    private static final long flushIntervalMillis = 2000;
+
+    private final Path srcBasePath;
+    private final String[] assets;
+    private final ChangeJournal changeJournal;
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+    private final Set<Path> assetRoots = new HashSet<>();
+
+    public ChangeWatcher(String srcBasePath, String[] assets, ChangeJournal changeJournal) {
+        this.srcBasePath = Paths.get(srcBasePath);
+        this.assets = assets;
+        this.changeJournal = changeJournal;
+    }
+
+    private String relative(Path path) {
+        return this.srcBasePath.relativize(path).toString();
+    }
+
+    private void registerTree(WatchService watchService, Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                watchedDirs.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    public void run() {
+        try (WatchService watchService = FileSystems.getDefault().newWatchService();
+             FileLock alive = this.changeJournal.markAlive()) {
+
+            // Whatever happened before this point is unknown, the next backup has to walk everything
+            this.changeJournal.markOverflow();
+
+            for (String asset : this.assets) {
+                Path assetPath = this.srcBasePath.resolve(asset);
+                if (Files.isDirectory(assetPath)) {
+                    registerTree(watchService, assetPath);
+                    this.assetRoots.add(assetPath);
+                } else if (assetPath.getParent() != null && Files.isDirectory(assetPath.getParent())) {
+                    WatchKey key = assetPath.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    this.watchedDirs.put(key, assetPath.getParent());
+                } else logger.warn("File/Folder does not exist: {}", assetPath);
+            }
+            logger.info("Watching {} folders for changes", this.watchedDirs.size());
+
+            Set<String> pending = new LinkedHashSet<>();
+            long lastFlush = System.currentTimeMillis();
+            while (alive.isValid()) {
+                WatchKey key = watchService.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    Path dir = this.watchedDirs.get(key);
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            logger.warn("Watch event queue overflowed");
+                            pending.add("O");
+                            continue;
+                        }
+                        if (dir == null) continue;
+                        pending.add("D " + relative(dir));
+                        Path child = dir.resolve((Path) event.context());
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child)) {
+                            // Folder created or moved in, its content was never seen by the watcher
+                            pending.add("R " + relative(child));
+                            try {
+                                registerTree(watchService, child);
+                            } catch (IOException e) {
+                                logger.warn("Unable to watch new folder {}", child, e);
+                            }
+                        }
+                    }
+                    if (!key.reset()) {
+                        // Removal of a subfolder shows up in its parent, but nothing watches the parent of an asset
+                        if (this.assetRoots.contains(dir)) pending.add("O");
+                        this.watchedDirs.remove(key);
+                    }
+                }
+                if (!pending.isEmpty() && System.currentTimeMillis() - lastFlush >= flushIntervalMillis) {
+                    this.changeJournal.append(pending);
+                    pending.clear();
+                    lastFlush = System.currentTimeMillis();
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Change watcher stopped", e);
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.info("Change watcher interrupted");
+        }
+    }
+}
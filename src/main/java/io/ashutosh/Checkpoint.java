@@ -0,0 +1,214 @@
+package io.ashutosh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/*
+    Progress journal of a backup run, kept at destPath/.udev-backup/checkpoint until the run ends
+    --------------------------------------
+    One entry per line, paths relative to srcPath:
+        S <millis>: start of the run that wrote the journal
+        D <folder>: every file in the tree below the folder was backed up (and verified)
+        A <asset>:  every file of the asset was backed up
+
+    A run that is interrupted (disk unplugged, machine suspended, process killed) leaves the journal behind and
+    the next run skips what it lists instead of walking and comparing it again. Entries are written ahead:
+    before they are appended, the copies they cover are synced through the sync callback.
+    A journal older than maxAge is ignored, so files changed since are not skipped for long.
+
+    The journal is created with its S line as the run starts, so even a run interrupted before its first entry
+    is noticed (wasInterrupted) and the next run clears the temporary files its copies left behind.
+ */
+public class Checkpoint {
+
+    private static final Logger logger = LoggerFactory.getLogger(Checkpoint.class);
+
+    private static final long maxAgeMillis = 24L * 60 * 60 * 1000;
+    private static final int flushEntries = 1000;
+    private static final long flushIntervalMillis = 10_000;
+
+    public interface Sync {
+        void sync() throws IOException;
+    }
+
+    // Files of a folder still being backed up, the folder is done once they and all its sub folders are
+    public class Progress {
+        private final String dir;
+        private final Progress parent;
+        // The walk of the folder itself counts as one
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        private Progress(String dir, Progress parent) {
+            this.dir = dir;
+            this.parent = parent;
+            if (parent != null) parent.pending.incrementAndGet();
+        }
+
+        public void add() {
+            this.pending.incrementAndGet();
+        }
+
+        public void done() {
+            if (this.pending.decrementAndGet() != 0) return;
+            record("D " + this.dir);
+            if (this.parent != null) this.parent.done();
+        }
+    }
+
+    private final Path checkpointPath;
+    private final Sync sync;
+    private final Set<String> doneDirs = new HashSet<>();
+    private final Set<String> doneAssets = new HashSet<>();
+
+    private final StringBuilder unflushed = new StringBuilder();
+    private int unflushedEntries = 0;
+    private long lastFlush = System.currentTimeMillis();
+    private FileChannel channel;
+    private boolean ended = false;
+    private boolean interrupted = false;
+
+    private Checkpoint(Path checkpointPath, Sync sync) {
+        this.checkpointPath = checkpointPath;
+        this.sync = sync;
+    }
+
+    public static Checkpoint open(Path checkpointPath, Sync sync) {
+        Checkpoint checkpoint = new Checkpoint(checkpointPath, sync);
+        try {
+            String content = Files.readString(checkpointPath, StandardCharsets.UTF_8);
+            checkpoint.interrupted = true;
+            // A line without its line end was torn by the interruption
+            List<String> lines = content.substring(0, content.lastIndexOf('\n') + 1).lines().collect(Collectors.toList());
+            long start = !lines.isEmpty() && lines.get(0).startsWith("S ") ? Long.parseLong(lines.get(0).substring(2).trim()) : 0;
+            if (System.currentTimeMillis() - start > maxAgeMillis) {
+                logger.info("Ignoring checkpoint of a run started at {}, it is too old to resume", start);
+            } else {
+                for (String line : lines) {
+                    if (line.startsWith("D ")) checkpoint.doneDirs.add(line.substring(2));
+                    else if (line.startsWith("A ")) checkpoint.doneAssets.add(line.substring(2));
+                }
+                logger.info("Resuming interrupted run: {} folders and {} assets are already backed up",
+                        checkpoint.doneDirs.size(), checkpoint.doneAssets.size());
+            }
+        } catch (NoSuchFileException e) {
+            // The previous run was not interrupted
+        } catch (IOException | NumberFormatException e) {
+            logger.warn("Unable to read checkpoint {}, starting over", checkpointPath, e);
+        }
+        if (!checkpoint.isResuming()) checkpoint.begin();
+        return checkpoint;
+    }
+
+    private synchronized void begin() {
+        try {
+            Files.createDirectories(this.checkpointPath.getParent());
+            this.channel = FileChannel.open(this.checkpointPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer buffer = ByteBuffer.wrap(("S " + System.currentTimeMillis() + "\n").getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) this.channel.write(buffer);
+            this.channel.force(false);
+        } catch (IOException e) {
+            // Entries are still written on the first flush
+            logger.warn("Unable to write checkpoint {}", this.checkpointPath, e);
+            try {
+                if (this.channel != null) this.channel.close();
+            } catch (IOException ignored) {
+                // Reopened by the first flush
+            }
+            this.channel = null;
+        }
+    }
+
+    // true if the previous run left its journal behind, whether or not it can be resumed
+    public boolean wasInterrupted() {
+        return this.interrupted;
+    }
+
+    public boolean isResuming() {
+        return !this.doneDirs.isEmpty() || !this.doneAssets.isEmpty();
+    }
+
+    // true if the file or folder lies in an asset or folder the interrupted run completed
+    public boolean covers(String path) {
+        if (this.doneAssets.contains(path) || this.doneDirs.contains(path)) return true;
+        for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+            String parent = path.substring(0, slash);
+            if (this.doneDirs.contains(parent) || this.doneAssets.contains(parent)) return true;
+        }
+        return false;
+    }
+
+    public Progress enter(String dir, Progress parent) {
+        return new Progress(dir, parent);
+    }
+
+    public void assetDone(String asset) {
+        record("A " + asset);
+    }
+
+    private synchronized void record(String entry) {
+        if (this.ended) return;
+        this.unflushed.append(entry).append('\n');
+        this.unflushedEntries++;
+        if (this.unflushedEntries >= flushEntries || System.currentTimeMillis() - this.lastFlush >= flushIntervalMillis) {
+            try {
+                flush();
+            } catch (IOException e) {
+                // Only costs comparing the folders again if the run is interrupted
+                logger.warn("Unable to write checkpoint {}", this.checkpointPath, e);
+            }
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        this.lastFlush = System.currentTimeMillis();
+        if (this.unflushedEntries == 0) return;
+        this.sync.sync();
+        if (this.channel == null) {
+            Files.createDirectories(this.checkpointPath.getParent());
+            boolean resumed = Files.exists(this.checkpointPath) && isResuming();
+            this.channel = FileChannel.open(this.checkpointPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    resumed ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+            // A resumed run adds to the journal of the interrupted one and keeps its start
+            if (!resumed) this.unflushed.insert(0, "S " + System.currentTimeMillis() + "\n");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(this.unflushed.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) this.channel.write(buffer);
+        this.channel.force(false);
+        this.unflushed.setLength(0);
+        this.unflushedEntries = 0;
+    }
+
+    // The run got to its end, failed paths or not, the next run starts over
+    public synchronized void complete() throws IOException {
+        this.ended = true;
+        if (this.channel != null) this.channel.close();
+        Files.deleteIfExists(this.checkpointPath);
+    }
+
+    // The run was cut short, what is complete so far is kept for the next run
+    public synchronized void close() {
+        if (this.ended) return;
+        this.ended = true;
+        try {
+            if (this.channel != null || this.unflushedEntries > 0) flush();
+            if (this.channel != null) this.channel.close();
+        } catch (IOException e) {
+            logger.warn("Unable to write checkpoint {}", this.checkpointPath, e);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package io.ashutosh;
+
+// Cloud stage of a backup run, implemented by the browser (PCloudBackup) and the HTTP API (PCloudApiUploader) uploaders
+public interface CloudBackup extends AutoCloseable {
+
+    // Setup that does not depend on the HDD backup (browser startup, login), runs while the HDD is still copying
+    void prepare();
+
+    // Uploads what the cloud is missing and returns the text for the report
+    String upload(String[] assets, CloudSync cloudSync);
+
+    boolean hasFailures();
+
+    // Anything sent after the report, like the video recording of the browser upload
+    default void sendAttachments(Notifier notifier) {
+    }
+
+    // Ends the run, resources worth keeping for the next run are released by shutdown()
+    @Override
+    void close();
+
+    default void shutdown() {
+    }
+}
@@ -0,0 +1,109 @@
+package io.ashutosh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/*
+    What the cloud still needs from the changes found by the HDD backup, kept in outputDir
+    --------------------------------------
+    cloud-pending: files copied to the HDD that have not been confirmed in the cloud yet, one per line
+    cloud-synced:  written once every asset was uploaded without failures, holds the uploader and cloudPath it
+                   is valid for. Without it the pending list can't be trusted and the cloud stage goes through all
+                   the assets again
+    cloud-ledger:  Manifest of the files confirmed uploaded by the api uploader, keyed by their path in the cloud
+ */
+public class CloudSync {
+
+    private static final Logger logger = LoggerFactory.getLogger(CloudSync.class);
+
+    private final Path pendingPath;
+    private final Path syncedPath;
+    private final Path ledgerPath;
+    private final String target;
+    // Entries read by pending(), only these are dropped by completed()
+    private final Set<String> claimed = new LinkedHashSet<>();
+
+    public CloudSync(Path outputDir, String uploader, String cloudPath) {
+        this.pendingPath = outputDir.resolve("cloud-pending");
+        this.syncedPath = outputDir.resolve("cloud-synced");
+        this.ledgerPath = outputDir.resolve("cloud-ledger");
+        this.target = uploader + " " + cloudPath;
+    }
+
+    // Called after the HDD backup with the files it copied
+    public void addPending(Collection<String> fileNames) {
+        if (fileNames.isEmpty()) return;
+        StringBuilder lines = new StringBuilder();
+        for (String fileName : fileNames) lines.append(fileName).append('\n');
+        try {
+            Files.createDirectories(this.pendingPath.getParent());
+            Files.write(this.pendingPath, lines.toString().getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            logger.warn("Unable to record the HDD change set, the next cloud backup goes through every asset", e);
+            invalidate();
+        }
+    }
+
+    // The HDD backup could not tell what changed, so the cloud stage has to look at everything
+    public void invalidate() {
+        try {
+            Files.deleteIfExists(this.syncedPath);
+        } catch (IOException e) {
+            logger.error("Unable to remove {}", this.syncedPath, e);
+        }
+    }
+
+    // true if the cloud held every asset after the last upload and pending lists everything changed since
+    public boolean inSync() {
+        try {
+            return new String(Files.readAllBytes(this.syncedPath), StandardCharsets.UTF_8).equals(this.target);
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            logger.warn("Unable to read {}", this.syncedPath, e);
+            return false;
+        }
+    }
+
+    public Set<String> pending() {
+        try {
+            this.claimed.addAll(Files.readAllLines(this.pendingPath, StandardCharsets.UTF_8));
+        } catch (NoSuchFileException e) {
+            // Nothing changed since the last upload
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.claimed.remove("");
+        return this.claimed;
+    }
+
+    public Manifest ledger() {
+        return Manifest.open(this.ledgerPath);
+    }
+
+    // Every asset is in the cloud: the claimed pending entries are done and the pending list is trustworthy again
+    public void completed() {
+        try {
+            Set<String> remaining = new LinkedHashSet<>();
+            if (Files.exists(this.pendingPath)) remaining.addAll(Files.readAllLines(this.pendingPath, StandardCharsets.UTF_8));
+            remaining.removeAll(this.claimed);
+            remaining.remove("");
+            if (remaining.isEmpty()) Files.deleteIfExists(this.pendingPath);
+            else Files.write(this.pendingPath, (String.join("\n", remaining) + "\n").getBytes(StandardCharsets.UTF_8));
+            Files.write(this.syncedPath, this.target.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            logger.error("Unable to record the completed cloud backup", e);
+        }
+    }
+}
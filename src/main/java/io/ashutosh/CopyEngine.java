@@ -0,0 +1,161 @@
+package io.ashutosh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class CopyEngine implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CopyEngine.class);
+
+    private final ThreadPoolExecutor compareStage;
+    private final ThreadPoolExecutor copyStage;
+    private final ThreadPoolExecutor verifyStage;
+
+    @FunctionalInterface
+    public interface IOTask {
+        void run() throws IOException;
+    }
+
+    // Tracks the tasks submitted for one asset so that its result can be awaited on its own
+    public static class Batch {
+        private final String name;
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        // Starts at 1 for the thread submitting the tasks, released in await()
+        private long pending = 1;
+
+        private Batch(String name) {
+            this.name = name;
+        }
+
+        private synchronized void register() {
+            pending++;
+        }
+
+        private synchronized void arrive() {
+            if (--pending == 0) notifyAll();
+        }
+
+        public boolean failed() {
+            return failure.get() != null;
+        }
+
+        public void fail(Throwable e) {
+            if (failure.compareAndSet(null, e)) logger.error("Batch {} failed, remaining tasks will be skipped", name, e);
+        }
+
+        public void await() {
+            arrive();
+            synchronized (this) {
+                while (pending > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("Interrupted while waiting for batch " + name, e);
+                    }
+                }
+            }
+            if (failure.get() != null) throw new RuntimeException(failure.get());
+        }
+    }
+
+    public CopyEngine(int workerThreads, int maxInFlightCopies) {
+        this.compareStage = stage("compare-worker-", workerThreads);
+        this.copyStage = stage("copy-worker-", maxInFlightCopies);
+        this.verifyStage = stage("verify-worker-", workerThreads);
+        logger.info("Copy engine started with {} compare threads and at most {} in-flight copies", workerThreads, maxInFlightCopies);
+    }
+
+    // Each stage is a fixed pool fed through a bounded queue. When the queue is full the producer
+    // blocks until a worker frees a slot, so neither the walk nor the compare stage can run ahead
+    // and pile up the whole tree in memory
+    private static ThreadPoolExecutor stage(String threadNamePrefix, int threads) {
+        AtomicInteger threadNum = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 64),
+                runnable -> {
+                    Thread thread = new Thread(runnable, threadNamePrefix + threadNum.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (runnable, executor) -> {
+                    if (executor.isShutdown()) throw new RejectedExecutionException("Copy engine is shut down");
+                    try {
+                        executor.getQueue().put(runnable);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException(e);
+                    }
+                });
+    }
+
+    // One compare and one copy worker, so files reach the disk in the order they were submitted. For spinning disks,
+    // where parallel copies only make the heads seek between the files
+    public void serialize() {
+        for (ThreadPoolExecutor stage : new ThreadPoolExecutor[]{this.compareStage, this.copyStage}) {
+            stage.setCorePoolSize(1);
+            stage.setMaximumPoolSize(1);
+        }
+        logger.info("Copy engine runs one compare and one copy at a time");
+    }
+
+    public Batch newBatch(String name) {
+        return new Batch(name);
+    }
+
+    private void submit(ThreadPoolExecutor stage, Batch batch, IOTask task) {
+        if (batch.failed()) return;
+        batch.register();
+        try {
+            stage.execute(() -> {
+                try {
+                    if (!batch.failed()) task.run();
+                } catch (IOException | RuntimeException e) {
+                    batch.fail(e);
+                } finally {
+                    batch.arrive();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            batch.arrive();
+            batch.fail(e);
+        }
+    }
+
+    // Stat and compare work, runs on as many threads as there are cores by default
+    public void compare(Batch batch, IOTask task) {
+        submit(this.compareStage, batch, task);
+    }
+
+    // Actual copies, limited separately so that the destination device is not flooded with parallel writes
+    public void copy(Batch batch, IOTask task) {
+        submit(this.copyStage, batch, task);
+    }
+
+    // Checksums of finished copies, on its own pool so that hashing never holds up a copy slot
+    // Only copy workers submit here and verify workers submit nowhere, so the stages cannot block each other
+    public void verify(Batch batch, IOTask task) {
+        submit(this.verifyStage, batch, task);
+    }
+
+    @Override
+    public void close() {
+        for (ThreadPoolExecutor stage : new ThreadPoolExecutor[]{this.compareStage, this.copyStage, this.verifyStage}) {
+            stage.shutdown();
+            try {
+                if (!stage.awaitTermination(1, TimeUnit.MINUTES))
+                    logger.warn("Copy engine workers did not terminate in time");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package io.ashutosh;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+public interface CopyStrategy {
+
+    // Name reported for every file copied with this strategy
+    String name();
+
+    // Copies the content of srcFilePath to destFilePath, replacing it if present
+    // Returns false if the strategy cannot be used for this file and the next one should be tried
+    boolean copy(Path srcFilePath, Path destFilePath, FileInfo fileInfo) throws IOException;
+}
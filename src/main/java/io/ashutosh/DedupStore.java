@@ -0,0 +1,389 @@
+package io.ashutosh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+    Content addressed repository kept at destPath/repository instead of a plain copy of the assets
+    --------------------------------------
+    packs/pack-NNNNNN.pack: unique chunks appended one after the other
+    index:                  sorted [sha256(32) pack(int) offset(long) length(int)] records, memory mapped and
+                            binary searched, so the chunk index never has to be loaded into the heap
+    files/<relative path>:  recipe of a file, its size, last modified time and the list of chunks making it up
+
+    Files are split with content defined chunking (gear rolling hash, FastCDC style), so an insertion only
+    changes the chunks around it and identical content anywhere in the assets is stored once.
+ */
+public class DedupStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(DedupStore.class);
+
+    private static final int indexMagic = 0x55444958; // "UDIX"
+    private static final int recipeMagic = 0x55445243; // "UDRC"
+    private static final int hashLen = 32;
+    private static final int indexRecordSize = hashLen + 4 + 8 + 4;
+    private static final int indexHeaderSize = 16;
+    private static final long maxPackSize = 512L * 1024 * 1024;
+    private static final long[] gear = gearTable();
+
+    private final Path repositoryPath;
+    private final Path packDir;
+    private final Path filesDir;
+    private final Path indexPath;
+    private final int minChunkSize;
+    private final int maxChunkSize;
+    private final long chunkMask;
+
+    private final ByteBuffer index;
+    private final long indexCount;
+    // Chunks stored in this run, merged into the index by finish()
+    private final Map<ByteBuffer, long[]> newChunks = new HashMap<>();
+    private final Map<Integer, Long> packSizes = new HashMap<>();
+
+    private int packId;
+    private FileChannel pack;
+    private long packPosition;
+
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+
+    public DedupStore(Path destBasePath, int averageChunkSize) throws IOException {
+        this.repositoryPath = destBasePath.resolve("repository");
+        this.packDir = this.repositoryPath.resolve("packs");
+        this.filesDir = this.repositoryPath.resolve("files");
+        this.indexPath = this.repositoryPath.resolve("index");
+        this.minChunkSize = averageChunkSize / 4;
+        this.maxChunkSize = averageChunkSize * 4;
+        this.chunkMask = Integer.highestOneBit(averageChunkSize) - 1L;
+
+        Files.createDirectories(this.packDir);
+        Files.createDirectories(this.filesDir);
+
+        ByteBuffer mapped = null;
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(this.indexPath, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            if (channel.size() >= indexHeaderSize && buffer.getInt(0) == indexMagic
+                    && indexHeaderSize + buffer.getLong(8) * indexRecordSize == channel.size()) {
+                mapped = buffer;
+                count = buffer.getLong(8);
+            } else logger.warn("Chunk index {} is not readable, chunks will be stored again", this.indexPath);
+        } catch (NoSuchFileException e) {
+            logger.info("Creating new repository at {}", this.repositoryPath);
+        }
+        this.index = mapped;
+        this.indexCount = count;
+
+        // Continue appending to the last pack
+        this.packId = 0;
+        try (var packs = Files.newDirectoryStream(this.packDir, "pack-*.pack")) {
+            for (Path packPath : packs) {
+                String name = packPath.getFileName().toString();
+                int id = Integer.parseInt(name.substring(5, name.length() - 5));
+                this.packSizes.put(id, Files.size(packPath));
+                this.packId = Math.max(this.packId, id);
+            }
+        }
+        openPack(Math.max(this.packId, 1));
+        logger.info("Repository opened with {} indexed chunks", this.indexCount);
+    }
+
+    private static long[] gearTable() {
+        // splitmix64 with a fixed seed, the table must never change or chunk boundaries would move
+        long[] table = new long[256];
+        long state = 0x5544425F47454152L;
+        for (int i = 0; i < table.length; i++) {
+            state += 0x9E3779B97F4A7C15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            table[i] = z ^ (z >>> 31);
+        }
+        return table;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Path packPath(int id) {
+        return this.packDir.resolve(String.format("pack-%06d.pack", id));
+    }
+
+    private void openPack(int id) throws IOException {
+        if (this.pack != null) {
+            this.pack.force(true);
+            this.pack.close();
+        }
+        this.packId = id;
+        this.pack = FileChannel.open(packPath(id), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.packPosition = this.pack.size();
+    }
+
+    private void readIndex(int position, byte[] dst) {
+        ByteBuffer view = this.index.duplicate();
+        view.position(position);
+        view.get(dst);
+    }
+
+    // Binary search of the mapped index, returns {pack, offset, length} or null
+    private long[] lookupIndex(byte[] hash) {
+        if (this.index == null) return null;
+        long low = 0, high = this.indexCount - 1;
+        byte[] probe = new byte[hashLen];
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            int position = (int) (indexHeaderSize + mid * indexRecordSize);
+            readIndex(position, probe);
+            int cmp = Arrays.compareUnsigned(probe, hash);
+            if (cmp < 0) low = mid + 1;
+            else if (cmp > 0) high = mid - 1;
+            else return new long[]{this.index.getInt(position + hashLen), this.index.getLong(position + hashLen + 4),
+                    this.index.getInt(position + hashLen + 12)};
+        }
+        return null;
+    }
+
+    // Returns the location of the chunk, appending it to the current pack if it is not stored yet
+    private synchronized long[] storeChunk(byte[] hash, byte[] data, int len) throws IOException {
+        long[] location = lookupIndex(hash);
+        if (location != null) return location;
+        ByteBuffer key = ByteBuffer.wrap(hash);
+        location = this.newChunks.get(key);
+        if (location != null) return location;
+
+        if (this.packPosition + len > maxPackSize && this.packPosition > 0) openPack(this.packId + 1);
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, len);
+        long offset = this.packPosition;
+        while (buffer.hasRemaining()) this.packPosition += this.pack.write(buffer, this.packPosition);
+        this.packSizes.put(this.packId, this.packPosition);
+        this.bytesWritten.add(len);
+
+        location = new long[]{this.packId, offset, len};
+        this.newChunks.put(key, location);
+        return location;
+    }
+
+    private Path recipePath(String fileName) {
+        return this.filesDir.resolve(fileName);
+    }
+
+    // Compares against the recipe written by an earlier run, making sure its chunks actually made it to disk
+    public boolean isUpToDate(String fileName, long size, long lastModified) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(recipePath(fileName))))) {
+            if (in.readInt() != recipeMagic || in.readLong() != size || in.readLong() != lastModified) return false;
+            int count = in.readInt();
+            byte[] scratch = new byte[hashLen];
+            for (int i = 0; i < count; i++) {
+                in.readFully(scratch);
+                int id = in.readInt();
+                long end = in.readLong() + in.readInt();
+                Long packSize;
+                synchronized (this) {
+                    packSize = this.packSizes.get(id);
+                }
+                if (packSize == null || packSize < end) return false;
+            }
+            return true;
+        } catch (NoSuchFileException | EOFException e) {
+            return false;
+        } catch (IOException e) {
+            logger.warn("Unable to read recipe of {}", fileName, e);
+            return false;
+        }
+    }
+
+    public void store(String fileName, Path srcFilePath, FileInfo fileInfo) throws IOException {
+        MessageDigest digest = sha256();
+        List<long[]> locations = new ArrayList<>();
+        List<byte[]> hashes = new ArrayList<>();
+
+        byte[] chunk = new byte[this.maxChunkSize];
+        byte[] buffer = new byte[64 * 1024];
+        int chunkLen = 0;
+        long hash = 0;
+        try (InputStream in = Files.newInputStream(srcFilePath)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                this.bytesRead.add(read);
+                for (int i = 0; i < read; i++) {
+                    chunk[chunkLen++] = buffer[i];
+                    hash = (hash << 1) + gear[buffer[i] & 0xff];
+                    if ((chunkLen >= this.minChunkSize && (hash & this.chunkMask) == 0) || chunkLen == this.maxChunkSize) {
+                        digest.update(chunk, 0, chunkLen);
+                        byte[] chunkHash = digest.digest();
+                        hashes.add(chunkHash);
+                        locations.add(storeChunk(chunkHash, chunk, chunkLen));
+                        chunkLen = 0;
+                        hash = 0;
+                    }
+                }
+            }
+        }
+        if (chunkLen > 0) {
+            digest.update(chunk, 0, chunkLen);
+            byte[] chunkHash = digest.digest();
+            hashes.add(chunkHash);
+            locations.add(storeChunk(chunkHash, chunk, chunkLen));
+        }
+
+        Path recipePath = recipePath(fileName);
+        Files.createDirectories(recipePath.getParent());
+        Path tmp = recipePath.resolveSibling(recipePath.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(recipeMagic);
+            out.writeLong(fileInfo.size);
+            out.writeLong(fileInfo.lastModified);
+            out.writeInt(hashes.size());
+            for (int i = 0; i < hashes.size(); i++) {
+                long[] location = locations.get(i);
+                out.write(hashes.get(i));
+                out.writeInt((int) location[0]);
+                out.writeLong(location[1]);
+                out.writeInt((int) location[2]);
+            }
+        }
+        Files.move(tmp, recipePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Stored files at path or below it, a path relative to srcPath
+    public List<String> fileNames(String path) throws IOException {
+        Path start = recipePath(path);
+        if (!Files.exists(start)) return new ArrayList<>();
+        try (Stream<Path> recipes = Files.walk(start)) {
+            return recipes.filter(Files::isRegularFile)
+                    .filter(recipe -> !recipe.getFileName().toString().endsWith(".tmp"))
+                    .map(recipe -> this.filesDir.relativize(recipe).toString())
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    // Last modified time of the source (seconds) when the file was stored
+    public long lastModified(String fileName) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(recipePath(fileName))))) {
+            if (in.readInt() != recipeMagic) throw new IOException("Not a recipe: " + fileName);
+            in.readLong();
+            return in.readLong();
+        }
+    }
+
+    // Writes the content of a stored file back out
+    public void restore(String fileName, OutputStream out) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(recipePath(fileName))))) {
+            if (in.readInt() != recipeMagic) throw new IOException("Not a recipe: " + fileName);
+            in.readLong();
+            in.readLong();
+            int count = in.readInt();
+            byte[] scratch = new byte[hashLen];
+            Map<Integer, FileChannel> packs = new HashMap<>();
+            try {
+                for (int i = 0; i < count; i++) {
+                    in.readFully(scratch);
+                    int id = in.readInt();
+                    long offset = in.readLong();
+                    ByteBuffer data = ByteBuffer.allocate(in.readInt());
+                    FileChannel packChannel = packs.get(id);
+                    if (packChannel == null) {
+                        packChannel = FileChannel.open(packPath(id), StandardOpenOption.READ);
+                        packs.put(id, packChannel);
+                    }
+                    while (data.hasRemaining()) {
+                        if (packChannel.read(data, offset + data.position()) < 0) throw new EOFException("Pack " + id + " is truncated");
+                    }
+                    out.write(data.array());
+                }
+            } finally {
+                for (FileChannel packChannel : packs.values()) packChannel.close();
+            }
+        }
+    }
+
+    // Makes the chunks stored so far durable, the recipes pointing to them are checked against the pack sizes
+    public synchronized void sync() throws IOException {
+        this.pack.force(true);
+    }
+
+    // Syncs the packs and merges the chunks stored in this run into the index
+    public synchronized void finish() throws IOException {
+        this.pack.force(true);
+        this.pack.close();
+
+        if (!this.newChunks.isEmpty()) {
+            ByteBuffer[] added = this.newChunks.keySet().toArray(new ByteBuffer[0]);
+            Arrays.sort(added, (a, b) -> Arrays.compareUnsigned(a.array(), b.array()));
+
+            Path tmp = this.indexPath.resolveSibling("index.tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                out.writeInt(indexMagic);
+                out.writeInt(0);
+                out.writeLong(this.indexCount + added.length);
+
+                // Merge of two sorted runs: the mapped index and the chunks added in this run
+                byte[] existing = new byte[hashLen];
+                long idx = 0;
+                int addedIdx = 0;
+                while (idx < this.indexCount || addedIdx < added.length) {
+                    int position = (int) (indexHeaderSize + idx * indexRecordSize);
+                    boolean takeExisting = addedIdx >= added.length;
+                    if (!takeExisting && idx < this.indexCount) {
+                        readIndex(position, existing);
+                        takeExisting = Arrays.compareUnsigned(existing, added[addedIdx].array()) < 0;
+                    }
+                    if (takeExisting) {
+                        byte[] record = new byte[indexRecordSize];
+                        readIndex(position, record);
+                        out.write(record);
+                        idx++;
+                    } else {
+                        long[] location = this.newChunks.get(added[addedIdx]);
+                        out.write(added[addedIdx].array());
+                        out.writeInt((int) location[0]);
+                        out.writeLong(location[1]);
+                        out.writeInt((int) location[2]);
+                        addedIdx++;
+                    }
+                }
+            }
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(tmp, this.indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        logger.info("Repository: {} new chunks, {} bytes read, {} bytes written", this.newChunks.size(),
+                this.bytesRead.sum(), this.bytesWritten.sum());
+    }
+}
@@ -0,0 +1,332 @@
+package io.ashutosh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/*
+    Block level delta transfer for large files that already exist on destPath
+    --------------------------------------
+    Every block of the destination file is summarised by a weak checksum (rsync style a/b sums) and a strong
+    checksum (MD5). The signatures are cached in destPath/.udev-backup/signatures so that later runs only need
+    to read the source file. Blocks whose checksums differ are spooled into a redo journal, the journal is
+    synced and marked complete, and only then the blocks are written in place with positional writes.
+    A crash before the journal is complete leaves the old file untouched, a crash after it is replayed by
+    recover() at the start of the next run, so the replacement is all or nothing.
+
+    journal: magic(int) destFilePath relative to destBasePath(UTF) newSize(long) then blocks of [position(long) len(int) data]
+             then -1(long) and the CRC32C(int) of everything before it
+
+    Blocks are compared at the same offset only, since in-place writes cannot reuse data that has moved.
+    Edits that shift the rest of the file make most blocks differ and fall back to a full copy.
+ */
+public class DeltaTransfer {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeltaTransfer.class);
+
+    private static final int signatureMagic = 0x55445347; // "UDSG"
+    private static final int journalMagic = 0x5544444A; // "UDDJ"
+    private static final int strongLen = 16;
+    // Beyond this share of changed bytes a plain copy writes about as much and is simpler
+    private static final double maxChangedRatio = 0.5;
+
+    private final Path destBasePath;
+    private final Path signatureDir;
+    private final Path journalDir;
+    private final long threshold;
+    private final int blockSize;
+
+    private static class Signature {
+        long fileSize;
+        long lastModified;
+        int blockSize;
+        int[] weak;
+        byte[] strong;
+
+        int blockCount() {
+            return weak.length;
+        }
+    }
+
+    public DeltaTransfer(Path destBasePath, Path metadataDir, long threshold, int blockSize) {
+        this.destBasePath = destBasePath.toAbsolutePath();
+        this.signatureDir = metadataDir.resolve("signatures");
+        this.journalDir = metadataDir.resolve("delta-journal");
+        this.threshold = threshold;
+        this.blockSize = blockSize;
+    }
+
+    public boolean applicable(long size) {
+        return this.threshold > 0 && size >= this.threshold;
+    }
+
+    static int weakChecksum(byte[] data, int len) {
+        int a = 0, b = 0;
+        for (int i = 0; i < len; i++) {
+            a += data[i] & 0xff;
+            b += (len - i) * (data[i] & 0xff);
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Path signaturePath(String fileName) {
+        return this.signatureDir.resolve(Long.toHexString(Manifest.hash(fileName.getBytes(StandardCharsets.UTF_8))) + ".sig");
+    }
+
+    private Signature readSignature(Path sigPath) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(sigPath)))) {
+            if (in.readInt() != signatureMagic) return null;
+            Signature signature = new Signature();
+            signature.fileSize = in.readLong();
+            signature.lastModified = in.readLong();
+            signature.blockSize = in.readInt();
+            int count = in.readInt();
+            signature.weak = new int[count];
+            signature.strong = new byte[count * strongLen];
+            for (int i = 0; i < count; i++) signature.weak[i] = in.readInt();
+            in.readFully(signature.strong);
+            return signature;
+        } catch (NoSuchFileException | EOFException e) {
+            return null;
+        }
+    }
+
+    private void writeSignature(Path sigPath, Signature signature) throws IOException {
+        Files.createDirectories(sigPath.getParent());
+        Path tmp = sigPath.resolveSibling(sigPath.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(signatureMagic);
+            out.writeLong(signature.fileSize);
+            out.writeLong(signature.lastModified);
+            out.writeInt(signature.blockSize);
+            out.writeInt(signature.blockCount());
+            for (int weak : signature.weak) out.writeInt(weak);
+            out.write(signature.strong);
+        }
+        Files.move(tmp, sigPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int readBlock(FileChannel channel, long position, byte[] block) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) break;
+        }
+        return buffer.position();
+    }
+
+    private Signature computeSignature(Path file, BasicFileAttributes attrs) throws IOException {
+        Signature signature = new Signature();
+        signature.fileSize = attrs.size();
+        signature.lastModified = attrs.lastModifiedTime().toMillis();
+        signature.blockSize = this.blockSize;
+        int count = (int) ((attrs.size() + this.blockSize - 1) / this.blockSize);
+        signature.weak = new int[count];
+        signature.strong = new byte[count * strongLen];
+
+        MessageDigest digest = md5();
+        byte[] block = new byte[this.blockSize];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (int idx = 0; idx < count; idx++) {
+                int len = readBlock(channel, (long) idx * this.blockSize, block);
+                signature.weak[idx] = weakChecksum(block, len);
+                digest.update(block, 0, len);
+                System.arraycopy(digest.digest(), 0, signature.strong, idx * strongLen, strongLen);
+            }
+        }
+        return signature;
+    }
+
+    // Applies the changed blocks of srcFilePath onto destFilePath
+    // Returns false if a delta is not worth it, in which case nothing on destPath has been modified
+    public boolean transfer(String fileName, Path srcFilePath, Path destFilePath) throws IOException {
+        BasicFileAttributes srcAttrs = Files.readAttributes(srcFilePath, BasicFileAttributes.class);
+        BasicFileAttributes destAttrs = Files.readAttributes(destFilePath, BasicFileAttributes.class);
+
+        Path sigPath = signaturePath(fileName);
+        Signature old = readSignature(sigPath);
+        if (old == null || old.blockSize != this.blockSize || old.fileSize != destAttrs.size()
+                || old.lastModified != destAttrs.lastModifiedTime().toMillis()) {
+            logger.debug("Computing block signatures of {}", destFilePath);
+            old = computeSignature(destFilePath, destAttrs);
+        }
+
+        long srcSize = srcAttrs.size();
+        int count = (int) ((srcSize + this.blockSize - 1) / this.blockSize);
+        Signature updated = new Signature();
+        updated.fileSize = srcSize;
+        updated.blockSize = this.blockSize;
+        updated.weak = new int[count];
+        updated.strong = new byte[count * strongLen];
+
+        Files.createDirectories(this.journalDir);
+        Path journalPath = this.journalDir.resolve(sigPath.getFileName().toString().replace(".sig", ".journal"));
+        long changedBytes = 0;
+        boolean complete = false;
+        MessageDigest digest = md5();
+        byte[] block = new byte[this.blockSize];
+        CRC32C crc = new CRC32C();
+
+        try (FileChannel src = FileChannel.open(srcFilePath, StandardOpenOption.READ);
+             DataOutputStream journal = new DataOutputStream(new CheckedOutputStream(
+                     new BufferedOutputStream(Files.newOutputStream(journalPath), 1 << 16), crc))) {
+            journal.writeInt(journalMagic);
+            // Relative, so the journal still applies with the disk mounted somewhere else
+            journal.writeUTF(this.destBasePath.relativize(destFilePath.toAbsolutePath()).toString());
+            journal.writeLong(srcSize);
+
+            for (int idx = 0; idx < count; idx++) {
+                long position = (long) idx * this.blockSize;
+                int len = readBlock(src, position, block);
+                int weak = weakChecksum(block, len);
+                digest.update(block, 0, len);
+                byte[] strong = digest.digest();
+
+                updated.weak[idx] = weak;
+                System.arraycopy(strong, 0, updated.strong, idx * strongLen, strongLen);
+
+                // Weak checksum rejects most changed blocks, the strong one confirms a match
+                boolean same = idx < old.blockCount()
+                        && (idx < old.blockCount() - 1 || old.fileSize - position == len)
+                        && old.weak[idx] == weak
+                        && Arrays.equals(old.strong, idx * strongLen, (idx + 1) * strongLen, strong, 0, strongLen);
+                if (same) continue;
+
+                changedBytes += len;
+                if (changedBytes > srcSize * maxChangedRatio) {
+                    logger.info("More than {}% of {} changed, falling back to a full copy", (int) (maxChangedRatio * 100), fileName);
+                    return false;
+                }
+                journal.writeLong(position);
+                journal.writeInt(len);
+                journal.write(block, 0, len);
+            }
+            // Marks the journal as complete
+            journal.writeLong(-1L);
+            journal.writeInt((int) crc.getValue());
+            complete = true;
+        } finally {
+            if (!complete) Files.deleteIfExists(journalPath);
+        }
+
+        try (FileChannel journalChannel = FileChannel.open(journalPath, StandardOpenOption.WRITE)) {
+            journalChannel.force(true);
+        }
+
+        replay(journalPath);
+        Files.setLastModifiedTime(destFilePath, srcAttrs.lastModifiedTime());
+        updated.lastModified = Files.getLastModifiedTime(destFilePath).toMillis();
+        writeSignature(sigPath, updated);
+        logger.info("Delta transfer wrote {} of {} bytes to {}", changedBytes, srcSize, destFilePath);
+        return true;
+    }
+
+    // true if the journal got its end marker and checksum, i.e. it is safe to replay
+    private static boolean isComplete(Path journalPath) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(journalPath), 1 << 16), crc))) {
+            if (in.readInt() != journalMagic) return false;
+            in.readUTF();
+            in.readLong();
+            while (in.readLong() >= 0) in.skipNBytes(in.readInt());
+            int expected = (int) crc.getValue();
+            return in.readInt() == expected;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    // Writes the blocks of a complete journal into place and removes it
+    private void replay(Path journalPath) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalPath), 1 << 16))) {
+            if (in.readInt() != journalMagic) throw new IOException("Not a delta journal: " + journalPath);
+            Path destFilePath = this.destBasePath.resolve(in.readUTF());
+            long newSize = in.readLong();
+            try (FileChannel dest = FileChannel.open(destFilePath, StandardOpenOption.WRITE)) {
+                long position;
+                while ((position = in.readLong()) >= 0) {
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    ByteBuffer buffer = ByteBuffer.wrap(data);
+                    while (buffer.hasRemaining()) dest.write(buffer, position + buffer.position());
+                }
+                dest.truncate(newSize);
+                dest.force(true);
+            }
+        }
+        Files.delete(journalPath);
+    }
+
+    // Completes or discards delta transfers interrupted in a previous run
+    public void recover() {
+        if (!Files.isDirectory(this.journalDir)) return;
+        List<Path> journalPaths = new ArrayList<>();
+        try (DirectoryStream<Path> journals = Files.newDirectoryStream(this.journalDir, "*.journal")) {
+            journals.forEach(journalPaths::add);
+        } catch (IOException e) {
+            logger.error("Unable to list interrupted delta transfers in {}", this.journalDir, e);
+            return;
+        }
+        for (Path journalPath : journalPaths) {
+            try {
+                // Checked in full before replay() opens the destination, a torn journal must not touch it
+                if (isComplete(journalPath)) {
+                    replay(journalPath);
+                    logger.warn("Replayed interrupted delta transfer from {}", journalPath);
+                } else {
+                    // Journal never got its end marker, so the destination file was not touched
+                    Files.deleteIfExists(journalPath);
+                    logger.warn("Discarded incomplete delta journal {}", journalPath);
+                }
+            } catch (IOException e) {
+                // The destination file is gone or half updated. Its modified time no longer matches the source,
+                // so the compare stage copies it again, and a fresh signature is computed for the next delta
+                logger.error("Unable to replay delta journal {}, the file is copied again", journalPath, e);
+                discard(journalPath);
+            }
+        }
+    }
+
+    private void discard(Path journalPath) {
+        String sigName = journalPath.getFileName().toString().replace(".journal", ".sig");
+        try {
+            Files.deleteIfExists(journalPath);
+            Files.deleteIfExists(this.signatureDir.resolve(sigName));
+        } catch (IOException e) {
+            logger.error("Unable to remove delta journal {}", journalPath, e);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package io.ashutosh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Copies files through the first applicable CopyStrategy and takes care of durability
+    --------------------------------------
+    fsyncPolicy:
+        none:  leave it to the kernel (data is flushed at the latest when the disk is unmounted)
+        file:  fsync every file right after it is copied
+        batch: fsync the last fsyncBatchSize copied files together with their folders
+
+    Every file is written to a temporary name next to it and renamed over destFilePath once complete, so an
+    interrupted copy leaves the previous copy as it was. A file replacing a previous copy is fsynced before that
+    rename under every policy.
+ */
+public class FileCopier {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileCopier.class);
+
+    static final String temporarySuffix = ".udev-tmp";
+
+    public enum FsyncPolicy {NONE, FILE, BATCH}
+
+    private final List<CopyStrategy> strategies;
+    private final FsyncPolicy fsyncPolicy;
+    private final int fsyncBatchSize;
+    private final List<Path> unsynced = new ArrayList<>();
+
+    private final Map<String, LongAdder> filesByStrategy = new LinkedHashMap<>();
+    private final Map<String, LongAdder> bytesByStrategy = new LinkedHashMap<>();
+
+    public FileCopier(List<CopyStrategy> strategies, FsyncPolicy fsyncPolicy, int fsyncBatchSize) {
+        this.strategies = strategies;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncBatchSize = fsyncBatchSize;
+        for (CopyStrategy strategy : strategies) {
+            this.filesByStrategy.put(strategy.name(), new LongAdder());
+            this.bytesByStrategy.put(strategy.name(), new LongAdder());
+        }
+    }
+
+    public static FileCopier create(Path srcBasePath, Path destBasePath, String copyMethod, int bufferSize,
+                                    FsyncPolicy fsyncPolicy, int fsyncBatchSize, IoThrottle throttle) {
+        List<CopyStrategy> strategies = new ArrayList<>();
+        switch (copyMethod) {
+            case "auto":
+                strategies.add(new ReflinkCopy(srcBasePath, destBasePath));
+                strategies.add(new TransferCopy(Math.max(bufferSize, 8 * 1024 * 1024), throttle));
+                strategies.add(new BufferedCopy(bufferSize, throttle));
+                break;
+            case "transfer":
+                strategies.add(new TransferCopy(Math.max(bufferSize, 8 * 1024 * 1024), throttle));
+                strategies.add(new BufferedCopy(bufferSize, throttle));
+                break;
+            case "buffered":
+                strategies.add(new BufferedCopy(bufferSize, throttle));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown copyMethod: " + copyMethod);
+        }
+        return new FileCopier(strategies, fsyncPolicy, fsyncBatchSize);
+    }
+
+    // Hidden, and in the folder of destFilePath so the rename stays on the same filesystem
+    public static Path temporaryPath(Path destFilePath) {
+        return destFilePath.resolveSibling("." + destFilePath.getFileName() + temporarySuffix);
+    }
+
+    // Returns the name of the strategy that copied the file
+    public String copy(Path srcFilePath, Path destFilePath, FileInfo fileInfo) throws IOException {
+        Path tmpPath = temporaryPath(destFilePath);
+        try {
+            for (CopyStrategy strategy : this.strategies) {
+                if (!strategy.copy(srcFilePath, tmpPath, fileInfo)) continue;
+
+                commit(srcFilePath, tmpPath, destFilePath);
+                this.filesByStrategy.get(strategy.name()).increment();
+                this.bytesByStrategy.get(strategy.name()).add(fileInfo.size);
+                return strategy.name();
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tmpPath);
+            throw e;
+        }
+        Files.deleteIfExists(tmpPath);
+        throw new IOException("No copy strategy was able to copy " + srcFilePath);
+    }
+
+    // Moves a file completely written to tmpPath, by a copy strategy or otherwise (e.g. compressed), over destFilePath
+    // with the attributes of the source and the durability of the fsync policy
+    public void commit(Path srcFilePath, Path tmpPath, Path destFilePath) throws IOException {
+        copyAttributes(srcFilePath, tmpPath);
+        // Synced before the rename, otherwise a crash or an unplugged disk could replace the previous copy with an
+        // empty or short file. Whatever the policy when there is a previous copy, batches only delay new files
+        if (this.fsyncPolicy == FsyncPolicy.FILE || Files.exists(destFilePath, LinkOption.NOFOLLOW_LINKS)) fsync(tmpPath);
+        Files.move(tmpPath, destFilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        afterCopy(destFilePath);
+    }
+
+    // Same attributes as COPY_ATTRIBUTES: timestamps always, permissions where the filesystem has them
+    private static void copyAttributes(Path srcFilePath, Path destFilePath) throws IOException {
+        BasicFileAttributes srcAttrs = Files.readAttributes(srcFilePath, BasicFileAttributes.class);
+        PosixFileAttributeView destView = Files.getFileAttributeView(destFilePath, PosixFileAttributeView.class);
+        if (destView != null) {
+            try {
+                destView.setPermissions(Files.readAttributes(srcFilePath, PosixFileAttributes.class).permissions());
+            } catch (IOException | UnsupportedOperationException e) {
+                // exFAT/NTFS mounts don't keep permissions
+            }
+        }
+        Files.getFileAttributeView(destFilePath, BasicFileAttributeView.class)
+                .setTimes(srcAttrs.lastModifiedTime(), srcAttrs.lastAccessTime(), null);
+    }
+
+    private void afterCopy(Path destFilePath) throws IOException {
+        switch (this.fsyncPolicy) {
+            case FILE:
+                // The new directory entry
+                if (destFilePath.getParent() != null) fsyncAll(List.of(), Set.of(destFilePath.getParent()));
+                break;
+            case BATCH:
+                List<Path> batch = null;
+                synchronized (this.unsynced) {
+                    this.unsynced.add(destFilePath);
+                    if (this.unsynced.size() >= this.fsyncBatchSize) {
+                        batch = new ArrayList<>(this.unsynced);
+                        this.unsynced.clear();
+                    }
+                }
+                if (batch != null) fsyncAll(batch);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void fsync(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private static void fsyncAll(List<Path> files) throws IOException {
+        Set<Path> folders = new LinkedHashSet<>();
+        for (Path file : files) {
+            if (file.getParent() != null) folders.add(file.getParent());
+        }
+        fsyncAll(files, folders);
+    }
+
+    private static void fsyncAll(List<Path> files, Set<Path> folders) throws IOException {
+        for (Path file : files) fsync(file);
+        // Makes the new directory entries durable as well
+        for (Path folder : folders) {
+            try {
+                fsync(folder);
+            } catch (IOException e) {
+                logger.debug("Unable to fsync folder {}", folder, e);
+            }
+        }
+    }
+
+    // Makes every file copied so far durable, without waiting for the batch to fill up
+    public void sync() throws IOException {
+        if (this.fsyncPolicy != FsyncPolicy.BATCH) return;
+        List<Path> batch;
+        synchronized (this.unsynced) {
+            batch = new ArrayList<>(this.unsynced);
+            this.unsynced.clear();
+        }
+        fsyncAll(batch);
+    }
+
+    // Flushes whatever is left of the current batch and reports how the files were copied
+    public void finish() throws IOException {
+        sync();
+        StringBuilder summary = new StringBuilder();
+        this.filesByStrategy.forEach((name, files) -> summary.append(name).append("=").append(files.sum())
+                .append(" files/").append(this.bytesByStrategy.get(name).sum()).append(" bytes "));
+        logger.info("Copy methods used: {}", summary.toString().trim());
+    }
+}
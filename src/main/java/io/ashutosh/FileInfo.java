@@ -1,22 +1,34 @@
 package io.ashutosh;
 
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
 
 public class FileInfo {
 
     String fileName;
-    BasicFileAttributes basicFileAttr;
+    long size;
+    // Last modified time in seconds, the granularity at which files are compared
+    long lastModified;
+    boolean directory;
 
-    public FileInfo(String fileName, BasicFileAttributes basicFileAttr) {
+    public FileInfo(String fileName, long size, long lastModified, boolean directory) {
         this.fileName = fileName;
-        this.basicFileAttr = basicFileAttr;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.directory = directory;
+    }
+
+    public static FileInfo of(String fileName, BasicFileAttributes basicFileAttr) {
+        return new FileInfo(fileName, basicFileAttr.size(), basicFileAttr.lastModifiedTime().to(TimeUnit.SECONDS), basicFileAttr.isDirectory());
     }
 
     @Override
     public String toString() {
         return "FileInfo{" +
                 "fileName='" + fileName + '\'' +
-                ", basicFileAttr=" + basicFileAttr +
+                ", size=" + size +
+                ", lastModified=" + lastModified +
+                ", directory=" + directory +
                 '}';
     }
 }
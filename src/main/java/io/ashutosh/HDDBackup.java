@@ -4,14 +4,36 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
 
 import static io.ashutosh.Utils.fileTimeComparator;
 
@@ -21,40 +43,462 @@ public class HDDBackup {
 
     private final Path srcBasePath;
     private final Path destBasePath;
+    private final CopyEngine copyEngine;
+    private boolean useManifest = true;
+    private Manifest manifest;
+    private long deltaThreshold = 0;
+    private int deltaBlockSize = 128 * 1024;
+    private DeltaTransfer deltaTransfer;
+    private String copyMethod = "auto";
+    private int copyBufferSize = 1024 * 1024;
+    private FileCopier.FsyncPolicy fsyncPolicy = FileCopier.FsyncPolicy.BATCH;
+    private int fsyncBatchSize = 256;
+    private FileCopier fileCopier;
+    private StoreMode storeMode = StoreMode.PLAIN;
+    private int averageChunkSize = 1024 * 1024;
+    private DedupStore dedupStore;
+    private long packThreshold = 256 * 1024;
+    private PackStore packStore;
+    private boolean compress = false;
+    private int compressionLevel = Deflater.BEST_SPEED;
+    private BlockCompressor compressor;
+    private int retainHourly = 24;
+    private int retainDaily = 30;
+    private int retainWeekly = 26;
+    private SnapshotManager snapshotManager;
+    private ChangeJournal changeJournal;
+    private Scheduling seekOrder = Scheduling.AUTO;
+    private Scheduling throttle = Scheduling.AUTO;
+    private long latencyTargetMillis = 50;
+    // Files of each folder are handed to the compare stage together, in inode order
+    private boolean seekOrdered = false;
+    private IoThrottle ioThrottle;
+    private boolean mirrorSource = false;
+    private int trashDays = 30;
+    private Mirror mirror;
+    // Progress of this run, and what an interrupted run completed when resume is set
+    private Checkpoint checkpoint;
+    private boolean resume = false;
+    // The previous run was cut short, its copies may have left temporary files in the folders it was in
+    private boolean sweepTemporary = false;
+    private boolean verifyCopies = true;
+    private long scrubBudgetMillis = 0;
+    private int scrubThreads = 1;
+    private HashCache hashCache;
+    private Verifier verifier;
+    private Verifier.Target verifyTarget;
+    // Files found corrupted by the scrub, copied again from the source in this run where the store mode allows it
+    private final List<String> corruptedFiles = new ArrayList<>();
+    private final Set<String> suspects = new HashSet<>();
+    private final BackupReport report = new BackupReport();
+    // Gzipped list of copied files sent along with the message when it is too long to list them there
+    private Path fileListAttachment;
+    // Where files are written in this run and where the copies of the previous run are
+    private Path destRoot;
+    private Path referenceRoot;
 
-    public HDDBackup(String srcBasePath, String destBasePath) {
+    // plain: destPath is a copy of the assets, dedup: destPath holds a deduplicating repository,
+    // snapshot: destPath holds dated generations sharing unchanged files through hard links,
+    // pack: files below the pack threshold are appended into pack files, larger ones are copied as in plain
+    public enum StoreMode {PLAIN, DEDUP, SNAPSHOT, PACK}
+
+    // auto: only if the source or destPath is on a spinning disk
+    public enum Scheduling {AUTO, ON, OFF}
+
+    // A file found by the walk, waiting for the rest of its folder before going to the compare stage
+    private static class Queued {
+        final long inode;
+        final FileInfo fileInfo;
+        final Mirror.Entry listed;
+        final Runnable done;
+
+        Queued(long inode, FileInfo fileInfo, Mirror.Entry listed, Runnable done) {
+            this.inode = inode;
+            this.fileInfo = fileInfo;
+            this.listed = listed;
+            this.done = done;
+        }
+    }
+
+    // Folder inside destBasePath holding the bookkeeping of the backup (manifest etc.)
+    static final String metadataDirName = ".udev-backup";
+
+    public HDDBackup(String srcBasePath, String destBasePath, int copyThreads, int maxInFlightCopies) {
         this.srcBasePath = Paths.get(srcBasePath);
         this.destBasePath = Paths.get(destBasePath);
+        this.copyEngine = new CopyEngine(copyThreads, maxInFlightCopies);
+    }
+
+    public void setUseManifest(boolean useManifest) {
+        this.useManifest = useManifest;
+    }
+
+    public void setCopyOptions(String copyMethod, int copyBufferSize, FileCopier.FsyncPolicy fsyncPolicy, int fsyncBatchSize) {
+        this.copyMethod = copyMethod;
+        this.copyBufferSize = copyBufferSize;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncBatchSize = fsyncBatchSize;
+    }
+
+    public void setStoreMode(StoreMode storeMode, int averageChunkSize) {
+        this.storeMode = storeMode;
+        this.averageChunkSize = averageChunkSize;
+    }
+
+    // Files smaller than packThreshold bytes go into the packs in pack mode
+    public void setPackThreshold(long packThreshold) {
+        this.packThreshold = packThreshold;
+    }
+
+    // Copies are compressed in plain mode and for the large files of pack mode, unless they are compressed already
+    public void setCompression(boolean compress, int compressionLevel) {
+        this.compress = compress;
+        this.compressionLevel = compressionLevel;
+    }
+
+    // Number of hourly, daily and weekly generations kept in snapshot mode
+    public void setSnapshotRetention(int retainHourly, int retainDaily, int retainWeekly) {
+        this.retainHourly = retainHourly;
+        this.retainDaily = retainDaily;
+        this.retainWeekly = retainWeekly;
+    }
+
+    // With a running ChangeWatcher only the folders listed in the journal are walked
+    public void setChangeJournal(ChangeJournal changeJournal) {
+        this.changeJournal = changeJournal;
+    }
+
+    // seekOrder: files are copied one at a time, folder by folder in inode order.
+    // throttle: copies slow down while the disks take more than latencyTargetMillis per request
+    public void setDiskScheduling(Scheduling seekOrder, Scheduling throttle, long latencyTargetMillis) {
+        this.seekOrder = seekOrder;
+        this.throttle = throttle;
+        this.latencyTargetMillis = latencyTargetMillis;
+    }
+
+    // Files deleted or renamed at the source are moved to the trash (kept trashDays, 0 deletes them) or moved on destPath
+    public void setMirror(boolean mirrorSource, int trashDays) {
+        this.mirrorSource = mirrorSource;
+        this.trashDays = trashDays;
+    }
+
+    // Copies are read back and compared with their source, and each run scrubs the backup for up to scrubBudgetMillis
+    public void setVerification(boolean verifyCopies, long scrubBudgetMillis, int scrubThreads) {
+        this.verifyCopies = verifyCopies;
+        this.scrubBudgetMillis = scrubBudgetMillis;
+        this.scrubThreads = scrubThreads;
+    }
+
+    public List<String> getCorruptedFiles() {
+        return this.corruptedFiles;
+    }
+
+    public Path getFileListAttachment() {
+        return this.fileListAttachment;
     }
 
-    private List<FileInfo> getSrcPathFileList(Path path) {
-        try (Stream<Path> files = Files.walk(path, Integer.MAX_VALUE)) {
-            return files.map(filePath -> {
+    // Files of at least deltaThreshold bytes are updated block by block, 0 disables delta transfer
+    public void setDeltaTransfer(long deltaThreshold, int deltaBlockSize) {
+        this.deltaThreshold = deltaThreshold;
+        this.deltaBlockSize = deltaBlockSize;
+    }
+
+    // Compare stage: decides from the manifest or from destPath whether the file needs to be copied
+    // done runs once the file is backed up (and verified), it doesn't run if that failed.
+    // listed is the copy found by the mirror walk (Mirror.missing if there is none), null if it has to be looked up
+    private void compareFile(FileInfo fileInfo, Mirror.Entry listed, Collection<String> copiedFiles, CopyEngine.Batch batch, Runnable done) throws IOException {
+        Path destFilePath = this.destRoot.resolve(fileInfo.fileName);
+
+        // Failed the scrub, the manifest and destPath attributes can't be trusted for it. Copied as a new file, which
+        // also keeps delta transfer from reusing the broken blocks and gives snapshots a fresh inode
+        if (this.suspects.contains(fileInfo.fileName) && this.dedupStore == null) {
+            logger.info("Copying file again as its backup failed the scrub: {}", destFilePath);
+            this.copyEngine.copy(batch, () -> copyFile(fileInfo, copiedFiles, false, batch, done));
+            return;
+        }
+
+        // Unchanged since the last run as per the manifest, no need to touch destPath at all
+        if (this.manifest != null && (listed == null || listed.exists())
+                && this.manifest.isUpToDate(fileInfo.fileName, fileInfo.size, fileInfo.lastModified)) {
+            unchanged(fileInfo, this.manifest.isCompressed(fileInfo.fileName), done);
+            logger.debug("File is up to date as per manifest: {}", destFilePath);
+            return;
+        }
+
+        // So do the packs for the small files
+        if (this.packStore != null && this.packStore.accepts(fileInfo.size)) {
+            if (this.packStore.isUpToDate(fileInfo.fileName, fileInfo.size, fileInfo.lastModified)) {
+                unchanged(fileInfo, false, done);
+                logger.debug("File is up to date in packs: {}", fileInfo.fileName);
+            } else this.copyEngine.copy(batch, () -> copyFile(fileInfo, copiedFiles, false, batch, done));
+            return;
+        }
+
+        // The repository keeps its own record of every stored file
+        if (this.dedupStore != null) {
+            if (this.dedupStore.isUpToDate(fileInfo.fileName, fileInfo.size, fileInfo.lastModified)) {
+                unchanged(fileInfo, false, done);
+                logger.debug("File is up to date in repository: {}", fileInfo.fileName);
+            } else this.copyEngine.copy(batch, () -> storeFile(fileInfo, copiedFiles, batch, done));
+            return;
+        }
+
+        // Same as destFilePath, except in snapshot mode where it is the file of the previous generation
+        Path referenceFilePath = this.referenceRoot == null ? null : this.referenceRoot.resolve(fileInfo.fileName);
+        boolean replace = this.referenceRoot == this.destRoot;
+        Mirror.Entry reference = listed != null ? listed : lookUp(referenceFilePath);
+
+        if (reference.exists() && !reference.compressed) {
+            // if file exists then compare last modified time and size
+            BasicFileAttributes destFileAttr = reference.attrs;
+            if (fileTimeComparator(destFileAttr.lastModifiedTime(), FileTime.from(fileInfo.lastModified, TimeUnit.SECONDS)) || destFileAttr.size() != fileInfo.size) {
+                this.copyEngine.copy(batch, () -> copyFile(fileInfo, copiedFiles, replace, batch, done));
+            } else {
+                unchanged(fileInfo, false, done);
+                logger.debug("File exists and is up to date: {}", destFilePath);
+            }
+        } else if (reference.exists()) {
+            // Compressed copy, its size is the one of the source kept in its trailer
+            Path compressedPath = BlockCompressor.compressedPath(referenceFilePath);
+            if (fileTimeComparator(reference.attrs.lastModifiedTime(), FileTime.from(fileInfo.lastModified, TimeUnit.SECONDS))
+                    || BlockCompressor.originalSize(compressedPath) != fileInfo.size) {
+                this.copyEngine.copy(batch, () -> copyFile(fileInfo, copiedFiles, false, batch, done));
+            } else {
+                unchanged(fileInfo, true, done);
+                logger.debug("Compressed file exists and is up to date: {}", compressedPath);
+            }
+        } else this.copyEngine.copy(batch, () -> copyFile(fileInfo, copiedFiles, false, batch, done));
+    }
+
+    // The copy of a file on destPath (or in the previous generation), plain or compressed
+    private Mirror.Entry lookUp(Path referenceFilePath) throws IOException {
+        if (referenceFilePath == null) return Mirror.missing;
+        if (Files.exists(referenceFilePath)) {
+            try {
+                return new Mirror.Entry(null, Files.readAttributes(referenceFilePath, BasicFileAttributes.class), false);
+            } catch (IOException e) {
+                logger.error("IOException occurred while reading attributes for file: {}", referenceFilePath, e);
+                throw e;
+            }
+        }
+        Path compressedPath = BlockCompressor.compressedPath(referenceFilePath);
+        if (this.compressor != null && Files.exists(compressedPath)) {
+            return new Mirror.Entry(null, Files.readAttributes(compressedPath, BasicFileAttributes.class), true);
+        }
+        return Mirror.missing;
+    }
+
+    // Keeps an unchanged file as it is, which in snapshot mode means linking it into the new generation
+    private void unchanged(FileInfo fileInfo, boolean compressed, Runnable done) throws IOException {
+        RunMetrics.current().count("files_skipped");
+        if (this.snapshotManager != null) this.snapshotManager.link(fileInfo.fileName);
+        if (this.manifest != null) this.manifest.record(fileInfo.fileName, fileInfo.size, fileInfo.lastModified, compressed);
+        done.run();
+    }
+
+    // Copy stage
+    private void copyFile(FileInfo fileInfo, Collection<String> copiedFiles, boolean replace, CopyEngine.Batch batch, Runnable done) throws IOException {
+        Path srcFilePath = this.srcBasePath.resolve(fileInfo.fileName);
+        Path destFilePath = this.destRoot.resolve(fileInfo.fileName);
+        long start = System.nanoTime();
+        try {
+            if (this.packStore != null && this.packStore.accepts(fileInfo.size)) {
+                // Was a plain or compressed copy while it was larger
+                if (!this.packStore.contains(fileInfo.fileName)) {
+                    Files.deleteIfExists(destFilePath);
+                    if (this.compressor != null) Files.deleteIfExists(BlockCompressor.compressedPath(destFilePath));
+                }
+                this.packStore.store(fileInfo.fileName, srcFilePath, fileInfo);
+                throttle(fileInfo.size);
+                logger.debug("File successfully packed: {}", fileInfo.fileName);
+                copyTime(start);
+                copied(fileInfo, false, copiedFiles, batch, done);
+                return;
+            }
+            if (this.packStore != null) {
+                // Folders are not created in pack mode, only the ones holding large files are needed
+                Files.createDirectories(destFilePath.getParent());
+                this.packStore.remove(fileInfo.fileName);
+            }
+
+            if (this.compressor != null) {
+                Path compressedPath = BlockCompressor.compressedPath(destFilePath);
+                Path tmpPath = FileCopier.temporaryPath(compressedPath);
+                boolean compressed;
                 try {
-                    return new FileInfo(this.srcBasePath.relativize(filePath).toString(), Files.readAttributes(filePath, BasicFileAttributes.class));
+                    compressed = this.compressor.compress(srcFilePath, tmpPath, fileInfo);
+                    if (compressed) this.fileCopier.commit(srcFilePath, tmpPath, compressedPath);
                 } catch (IOException e) {
-                    // Unlikely that we'll get an exception while reading attributes
-                    // But if we get we'll skip the whole path itself by throwing RuntimeException
-                    logger.error("Unable to read file attributes for file/folder: {}", filePath, e);
-                    throw new RuntimeException(e);
+                    Files.deleteIfExists(tmpPath);
+                    throw e;
+                }
+                if (compressed) {
+                    throttle(fileInfo.size);
+                    Files.deleteIfExists(destFilePath);
+                    logger.debug("File successfully compressed: {}", compressedPath);
+                    copyTime(start);
+                    copied(fileInfo, true, copiedFiles, batch, done);
+                    return;
+                }
+                // Was compressible before
+                Files.deleteIfExists(compressedPath);
+            }
+
+            // Large files that already exist on destPath only get their changed blocks rewritten
+            if (replace && this.deltaTransfer != null && this.deltaTransfer.applicable(fileInfo.size)
+                    && this.deltaTransfer.transfer(fileInfo.fileName, srcFilePath, destFilePath)) {
+                throttle(fileInfo.size);
+                logger.debug("File successfully updated with delta transfer: {}", destFilePath);
+            } else {
+                String copyMethod = this.fileCopier.copy(srcFilePath, destFilePath, fileInfo);
+                if (replace) logger.debug("File successfully replaced ({}): {}", copyMethod, destFilePath);
+                else logger.debug("File successfully created ({}): {}", copyMethod, destFilePath);
+            }
+            copyTime(start);
+            copied(fileInfo, false, copiedFiles, batch, done);
+        } catch (IOException e) {
+            RunMetrics.current().count("files_failed");
+            logger.error("Unable to copy file to the following path: {}", destFilePath, e);
+            throw e;
+        }
+    }
+
+    // Copy stage in dedup mode
+    private void storeFile(FileInfo fileInfo, Collection<String> copiedFiles, CopyEngine.Batch batch, Runnable done) throws IOException {
+        long start = System.nanoTime();
+        try {
+            this.dedupStore.store(fileInfo.fileName, this.srcBasePath.resolve(fileInfo.fileName), fileInfo);
+            throttle(fileInfo.size);
+            logger.debug("File successfully stored in repository: {}", fileInfo.fileName);
+            copyTime(start);
+            copied(fileInfo, false, copiedFiles, batch, done);
+        } catch (IOException e) {
+            RunMetrics.current().count("files_failed");
+            logger.error("Unable to store file in repository: {}", fileInfo.fileName, e);
+            throw e;
+        }
+    }
+
+    // For files not written through the file copier, which throttles every chunk: paced once they are written
+    private void throttle(long bytes) throws IOException {
+        if (this.ioThrottle != null) this.ioThrottle.acquire(bytes);
+    }
+
+    private static void copyTime(long start) {
+        long nanos = System.nanoTime() - start;
+        RunMetrics.current().addPhaseTime("copy", nanos);
+        RunMetrics.current().observeFileLatency(nanos);
+    }
+
+    // A copy only counts as backed up, and makes it into the manifest, once it has been verified against the source
+    private void copied(FileInfo fileInfo, boolean compressed, Collection<String> copiedFiles, CopyEngine.Batch batch, Runnable done) throws IOException {
+        if (this.verifier == null) {
+            copiedFiles.add(fileInfo.fileName);
+            this.report.add(fileInfo);
+            RunMetrics.current().count("files_copied");
+            RunMetrics.current().count("bytes_copied", fileInfo.size);
+            if (this.manifest != null) this.manifest.record(fileInfo.fileName, fileInfo.size, fileInfo.lastModified, compressed);
+            done.run();
+            return;
+        }
+        this.copyEngine.verify(batch, () -> {
+            boolean verified;
+            RunMetrics.Phase phase = RunMetrics.current().phase("verify");
+            try {
+                verified = this.verifier.verify(fileInfo, this.srcBasePath.resolve(fileInfo.fileName), this.verifyTarget);
+            } finally {
+                phase.close();
+            }
+            if (!verified) return;
+            logger.debug("Copy verified: {}", fileInfo.fileName);
+            copiedFiles.add(fileInfo.fileName);
+            this.report.add(fileInfo);
+            RunMetrics.current().count("files_copied");
+            RunMetrics.current().count("bytes_copied", fileInfo.size);
+            if (this.manifest != null) this.manifest.record(fileInfo.fileName, fileInfo.size, fileInfo.lastModified, compressed);
+            done.run();
+        });
+    }
+
+    // Reads backed up files from the repository in dedup mode, from the packs if they hold them and from root otherwise,
+    // compressed copies through the compressor
+    private Verifier.Target verifierTarget(Path root) {
+        return new Verifier.Target() {
+            @Override
+            public boolean holds(String fileName, long size, long lastModified) throws IOException {
+                if (dedupStore != null) return dedupStore.isUpToDate(fileName, size, lastModified);
+                if (packStore != null && packStore.contains(fileName)) return packStore.isUpToDate(fileName, size, lastModified);
+                Path compressedPath = BlockCompressor.compressedPath(root.resolve(fileName));
+                if (compressor != null && Files.exists(compressedPath)) {
+                    return BlockCompressor.originalSize(compressedPath) == size
+                            && Files.getLastModifiedTime(compressedPath).to(TimeUnit.SECONDS) == lastModified;
+                }
+                FileInfo backedUp = FileInfo.of(fileName, Files.readAttributes(root.resolve(fileName), BasicFileAttributes.class));
+                return backedUp.size == size && backedUp.lastModified == lastModified;
+            }
+
+            @Override
+            public int checksum(String fileName) throws IOException {
+                boolean packed = packStore != null && packStore.contains(fileName);
+                Path compressedPath = BlockCompressor.compressedPath(root.resolve(fileName));
+                boolean compressed = compressor != null && !packed && Files.exists(compressedPath);
+                if (dedupStore == null && !packed && !compressed) return Verifier.checksum(root.resolve(fileName));
+                CRC32C crc = new CRC32C();
+                try (OutputStream out = new CheckedOutputStream(OutputStream.nullOutputStream(), crc)) {
+                    if (packed) packStore.restore(fileName, out);
+                    else if (compressed) compressor.restore(compressedPath, out);
+                    else dedupStore.restore(fileName, out);
                 }
-            }).collect(Collectors.toList());
+                return (int) crc.getValue();
+            }
+        };
+    }
+
+    private void copyFolder(Path srcFolderPath) throws IOException {
+        // Folders only exist as part of the recipe paths in dedup mode, and are created along with large files in pack mode
+        if (this.dedupStore != null || this.packStore != null) return;
+        Path destFolderPath = this.destRoot.resolve(this.srcBasePath.relativize(srcFolderPath));
+        if (Files.exists(destFolderPath)) {
+            logger.debug("Folder already exists: {}", destFolderPath);
+            return;
+        }
+        // If folder does not exist then copy empty folder
+        try {
+            Files.copy(srcFolderPath, destFolderPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            logger.debug("Folder successfully created: {}", destFolderPath);
         } catch (IOException e) {
-            logger.error("Unable to walk the file tree for the path: {}", path.toString(), e);
-            throw new RuntimeException(e);
+            logger.error("Unable to create folder with the following path: {}", destFolderPath, e);
+            throw e;
         }
     }
 
-    private void copyNewOrAlteredFiles(Path path, List<String> copiedFiles) {
+    // Deletes the temporary files of copies cut short by the interrupted run, before this run starts its own there.
+    // Mirror mode deletes them along with the other paths missing at the source
+    private void removeTemporaryFiles(Path srcFolderPath) {
+        if (this.dedupStore != null) return;
+        Path destFolderPath = this.destRoot.resolve(this.srcBasePath.relativize(srcFolderPath));
+        if (!Files.isDirectory(destFolderPath)) return;
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(destFolderPath, "*" + FileCopier.temporarySuffix)) {
+            for (Path leftover : leftovers) {
+                Files.deleteIfExists(leftover);
+                RunMetrics.current().count("temporary_files_removed");
+                logger.debug("Removed temporary file of an interrupted copy: {}", leftover);
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to remove temporary files from {}", destFolderPath, e);
+        }
+    }
 
-        List<FileInfo> fileInfoList = getSrcPathFileList(path);
+    // Walk stage: runs on the calling thread and streams files into the compare stage as they are found,
+    // so copying starts with the first changed file and nothing proportional to the tree size is held in memory
+    private void copyNewOrAlteredFiles(Path path, int maxDepth, Collection<String> copiedFiles, CopyEngine.Batch batch) {
 
         // For nested files/directories
         // Parent directories might not be present while copying so creating necessary directories
         Path parent = this.srcBasePath.relativize(path).getParent();
         try {
-            if (parent != null) {
-                Files.createDirectories(this.destBasePath.resolve(parent));
+            if (parent != null && this.dedupStore == null && this.packStore == null) {
+                Files.createDirectories(this.destRoot.resolve(parent));
                 logger.info("Created parent directory at destBasePath for the following path: {}", path);
             }
         } catch (IOException e) {
@@ -62,39 +506,377 @@ public class HDDBackup {
             throw new RuntimeException(e);
         }
 
-        for (FileInfo fileInfo : fileInfoList) {
-            Path srcFilePath = this.srcBasePath.resolve(fileInfo.fileName);
-            Path destFilePath = this.destBasePath.resolve(fileInfo.fileName);
-            if (Files.exists(destFilePath)) {
-                // if file exists then compare last modified time and size
-                if (fileInfo.basicFileAttr.isRegularFile()) {
-                    try {
-                        BasicFileAttributes destFileAttr = Files.readAttributes(destFilePath, BasicFileAttributes.class);
+        // A single file asset has no folder of its own to sweep
+        if (this.sweepTemporary && this.dedupStore == null && !Files.isDirectory(path)) {
+            Path destFilePath = this.destRoot.resolve(this.srcBasePath.relativize(path));
+            try {
+                Files.deleteIfExists(FileCopier.temporaryPath(destFilePath));
+                Files.deleteIfExists(FileCopier.temporaryPath(BlockCompressor.compressedPath(destFilePath)));
+            } catch (IOException e) {
+                logger.warn("Unable to remove temporary files of {}", destFilePath, e);
+            }
+        }
 
-                        if (fileTimeComparator(destFileAttr.lastModifiedTime(), fileInfo.basicFileAttr.lastModifiedTime()) || destFileAttr.size() != fileInfo.basicFileAttr.size()) {
-                            Files.copy(srcFilePath, destFilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
-                            logger.info("File successfully replaced: {}", destFilePath);
-                            copiedFiles.add(fileInfo.fileName);
-                        } else logger.info("File exists and is up to date: {}", destFilePath);
+        // Only a walk of the whole tree below a folder can tell the checkpoint the folder is complete
+        boolean tracked = this.checkpoint != null && maxDepth == Integer.MAX_VALUE;
+        Deque<Checkpoint.Progress> progress = new ArrayDeque<>();
+        Deque<List<Queued>> queued = new ArrayDeque<>();
 
-                    } catch (IOException e) {
-                        logger.error("IOException occurred while reading attributes or while copying for file: {}", destFilePath, e);
-                        throw new RuntimeException(e);
+        try {
+            if (this.mirror != null && Files.isDirectory(path)) {
+                mirrorFolder(path, maxDepth, tracked, null, copiedFiles, batch);
+                return;
+            }
+            Files.walkFileTree(path, EnumSet.noneOf(FileVisitOption.class), maxDepth, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (batch.failed()) return FileVisitResult.TERMINATE;
+                    String relativeDir = srcBasePath.relativize(dir).toString();
+                    if (resume && checkpoint.covers(relativeDir)) {
+                        RunMetrics.current().count("dirs_resumed");
+                        logger.debug("Folder was completed by the interrupted run: {}", relativeDir);
+                        return FileVisitResult.SKIP_SUBTREE;
                     }
-                } else logger.info("Folder already exists: {}", destFilePath);
+                    // Folders are created here, before any of their files reach the copy stage
+                    copyFolder(dir);
+                    if (sweepTemporary) removeTemporaryFiles(dir);
+                    if (tracked) progress.push(checkpoint.enter(relativeDir, progress.peek()));
+                    if (seekOrdered) queued.push(new ArrayList<>());
+                    return FileVisitResult.CONTINUE;
+                }
 
-            } else {
-                // If file or folder does not exist then copy that file or copy empty folder
-                try {
-                    Files.copy(srcFilePath, destFilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
-                    logger.info("File/Folder successfully created: {}", destFilePath);
-                    if (fileInfo.basicFileAttr.isRegularFile()) copiedFiles.add(fileInfo.fileName);
-                } catch (IOException e) {
-                    logger.error("Unable to create file/folder with the following path: {}", destFilePath, e);
-                    throw new RuntimeException(e);
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    if (exc != null) throw exc;
+                    if (seekOrdered) submitInOrder(queued.pop(), copiedFiles, batch);
+                    // Walked, the folder is complete once its last file is
+                    if (tracked) progress.pop().done();
+                    return FileVisitResult.CONTINUE;
                 }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (batch.failed()) return FileVisitResult.TERMINATE;
+                    // Links are copied as what they point to
+                    if (attrs.isSymbolicLink()) attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                    if (attrs.isDirectory()) {
+                        copyFolder(file);
+                        return FileVisitResult.CONTINUE;
+                    }
+                    FileInfo fileInfo = FileInfo.of(srcBasePath.relativize(file).toString(), attrs);
+                    Checkpoint.Progress folder = tracked ? progress.peek() : null;
+                    if (folder != null) folder.add();
+                    Runnable done = folder == null ? () -> {} : folder::done;
+                    // A single file asset has no folder to wait for
+                    if (queued.isEmpty()) submitCompare(fileInfo, null, copiedFiles, batch, done);
+                    else queued.peek().add(new Queued(inode(file), fileInfo, null, done));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            logger.error("Unable to walk the file tree for the path: {}", path.toString(), e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Walk stage of mirror mode: merge-joins the sorted listings of a source folder and of its copy, then does the
+    // same for each sub folder up to maxDepth levels down
+    private void mirrorFolder(Path srcDir, int maxDepth, boolean tracked, Checkpoint.Progress parent,
+                              Collection<String> copiedFiles, CopyEngine.Batch batch) throws IOException {
+        if (batch.failed()) return;
+        String relativeDir = this.srcBasePath.relativize(srcDir).toString();
+        if (this.resume && this.checkpoint.covers(relativeDir)) {
+            RunMetrics.current().count("dirs_resumed");
+            logger.debug("Folder was completed by the interrupted run: {}", relativeDir);
+            return;
+        }
+        copyFolder(srcDir);
+        Checkpoint.Progress folder = tracked ? this.checkpoint.enter(relativeDir, parent) : null;
+
+        List<Mirror.Entry> sources = Mirror.listSource(srcDir);
+        Set<String> sourceNames = new HashSet<>();
+        for (Mirror.Entry source : sources) sourceNames.add(source.name);
+        List<Mirror.Entry> copies = this.mirror.listCopies(this.destRoot.resolve(relativeDir), sourceNames);
+
+        List<Queued> queued = new ArrayList<>();
+        int srcIdx = 0;
+        int destIdx = 0;
+        while (srcIdx < sources.size() || destIdx < copies.size()) {
+            if (batch.failed()) return;
+            Mirror.Entry source = srcIdx < sources.size() ? sources.get(srcIdx) : null;
+            Mirror.Entry copy = destIdx < copies.size() ? copies.get(destIdx) : null;
+            int order = source == null ? 1 : copy == null ? -1 : source.name.compareTo(copy.name);
+            String fileName = relativeDir.isEmpty() ? (order > 0 ? copy : source).name : relativeDir + "/" + (order > 0 ? copy : source).name;
+
+            // Only on destPath, deleted at the source
+            if (order > 0) {
+                this.mirror.deleted(fileName, copy, batch);
+                destIdx++;
+                continue;
+            }
+            srcIdx++;
+            if (order == 0) {
+                destIdx++;
+                // A file replaced a folder at the source or the other way round
+                if (copy.attrs.isDirectory() != source.attrs.isDirectory()) {
+                    this.mirror.discard(fileName, copy);
+                    copy = Mirror.missing;
+                }
+            } else copy = Mirror.missing;
+
+            if (source.attrs.isDirectory()) {
+                if (maxDepth > 1) mirrorFolder(srcDir.resolve(source.name), maxDepth - 1, tracked, folder, copiedFiles, batch);
+                else copyFolder(srcDir.resolve(source.name));
+                continue;
             }
+
+            FileInfo fileInfo = FileInfo.of(fileName, source.attrs);
+            this.mirror.seen(fileInfo, source.attrs.fileKey());
+            if (folder != null) folder.add();
+            Runnable done = folder == null ? () -> {} : folder::done;
+            String renamedFrom = copy.exists() ? null : this.mirror.renamedFrom(fileInfo, source.attrs.fileKey());
+            if (renamedFrom != null) {
+                this.mirror.renamed(renamedFrom, fileInfo, batch, done);
+                continue;
+            }
+            if (this.seekOrdered) queued.add(new Queued(inode(srcDir.resolve(source.name)), fileInfo, copy, done));
+            else submitCompare(fileInfo, copy, copiedFiles, batch, done);
         }
+        submitInOrder(queued, copiedFiles, batch);
+        // Walked, the folder is complete once its last file is
+        if (folder != null) folder.done();
+    }
+
+    // Moves the copies of renamed files to their new path, now that the walk knows every path deleted at the source.
+    // A file whose old copy isn't there anymore goes through the compare stage like any new file
+    private void moveRenamedFiles(Collection<String> copiedFiles) {
+        for (Mirror.Rename rename : this.mirror.renames()) {
+            FileInfo fileInfo = rename.fileInfo;
+            if (rename.batch.failed()) continue;
+            try {
+                Mirror.Entry moved = this.mirror.moveCopy(rename.from, fileInfo);
+                if (moved != null) {
+                    logger.debug("Copy moved along with the renamed file: {} -> {}", rename.from, fileInfo.fileName);
+                    RunMetrics.current().count("files_renamed");
+                    HashCache.Entry hashed = this.hashCache == null ? null : this.hashCache.get(rename.from);
+                    if (hashed != null) {
+                        this.hashCache.put(fileInfo.fileName, hashed.size, hashed.lastModified, hashed.crc);
+                        this.hashCache.remove(rename.from);
+                    }
+                    unchanged(fileInfo, moved.compressed, rename.done);
+                    continue;
+                }
+            } catch (IOException e) {
+                logger.warn("Unable to move the copy of {} to {}, copying it again", rename.from, fileInfo.fileName, e);
+            }
+            submitCompare(fileInfo, Mirror.missing, copiedFiles, rename.batch, rename.done);
+        }
+    }
+
+    private void submitCompare(FileInfo fileInfo, Mirror.Entry listed, Collection<String> copiedFiles, CopyEngine.Batch batch, Runnable done) {
+        this.copyEngine.compare(batch, () -> {
+            RunMetrics.Phase phase = RunMetrics.current().phase("compare");
+            try {
+                compareFile(fileInfo, listed, copiedFiles, batch, done);
+            } finally {
+                phase.close();
+            }
+        });
+    }
+
+    // Inode order is roughly the order of the files on disk for ext4 and friends, and the serialized copy engine keeps
+    // it all the way to destPath
+    private void submitInOrder(List<Queued> queued, Collection<String> copiedFiles, CopyEngine.Batch batch) {
+        queued.sort(Comparator.comparingLong(file -> file.inode));
+        for (Queued file : queued) submitCompare(file.fileInfo, file.listed, copiedFiles, batch, file.done);
+    }
+
+    private static long inode(Path file) {
+        try {
+            return (Long) Files.getAttribute(file, "unix:ino");
+        } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+            return 0;
+        }
+    }
+
+    // Spinning disks get the copies in disk order and throttled, unless configured otherwise
+    private void scheduleDisks() {
+        BlockDevice srcDevice = BlockDevice.of(this.srcBasePath);
+        BlockDevice destDevice = BlockDevice.of(this.destBasePath);
+        boolean rotational = (srcDevice != null && srcDevice.isRotational()) || (destDevice != null && destDevice.isRotational());
+        logger.info("Source on {}, destPath on {}", srcDevice == null ? "no block device" : srcDevice,
+                destDevice == null ? "no block device" : destDevice);
+
+        this.seekOrdered = this.seekOrder == Scheduling.ON || (this.seekOrder == Scheduling.AUTO && rotational);
+        if (this.seekOrdered) this.copyEngine.serialize();
+
+        if (this.throttle == Scheduling.ON || (this.throttle == Scheduling.AUTO && rotational)) {
+            List<BlockDevice> devices = new ArrayList<>();
+            if (srcDevice != null) devices.add(srcDevice);
+            if (destDevice != null && (srcDevice == null || !destDevice.name().equals(srcDevice.name()))) devices.add(destDevice);
+            if (devices.isEmpty()) logger.warn("No block device to watch, copies are not throttled");
+            else this.ioThrottle = new IoThrottle(devices, this.latencyTargetMillis);
+        }
+    }
+
+    private String assetName(String asset) {
+        return this.srcBasePath.relativize(this.srcBasePath.resolve(asset)).toString();
+    }
+
+    // Makes the copies made so far durable, before the checkpoint records them as complete
+    private void syncCopies() throws IOException {
+        this.fileCopier.sync();
+        if (this.packStore != null) this.packStore.sync();
+        if (this.dedupStore != null) this.dedupStore.sync();
+    }
+
+    private static boolean within(String path, String folder) {
+        return folder.isEmpty() || path.equals(folder) || path.startsWith(folder + "/");
+    }
+
+    // Walks only what the change journal lists for the asset: new trees completely, changed folders one level deep
+    private void copyChangedFolders(String asset, ChangeJournal.Scan scan, Collection<String> copiedFiles, CopyEngine.Batch batch) {
+        Path assetPath = this.srcBasePath.resolve(asset);
+        String assetName = this.srcBasePath.relativize(assetPath).toString();
+
+        if (!Files.isDirectory(assetPath)) {
+            Path parent = this.srcBasePath.relativize(assetPath).getParent();
+            if (scan.dirs().contains(parent == null ? "" : parent.toString()) && Files.exists(assetPath)) {
+                copyNewOrAlteredFiles(assetPath, Integer.MAX_VALUE, copiedFiles, batch);
+            }
+            return;
+        }
+        for (String tree : scan.trees()) {
+            Path treePath = this.srcBasePath.resolve(tree);
+            if (within(tree, assetName) && Files.isDirectory(treePath)) {
+                copyNewOrAlteredFiles(treePath, Integer.MAX_VALUE, copiedFiles, batch);
+            }
+        }
+        for (String dir : scan.dirs()) {
+            Path dirPath = this.srcBasePath.resolve(dir);
+            if (within(dir, assetName) && Files.isDirectory(dirPath)) {
+                copyNewOrAlteredFiles(dirPath, 1, copiedFiles, batch);
+            }
+        }
+    }
+
+    // Random id kept in the metadata folder of destBasePath, tells the disk apart from any other one mounted there
+    // null if it can't be read or created, the change journal is then not trusted
+    private static String destinationId(Path metadataDir) {
+        Path idPath = metadataDir.resolve("backup-id");
+        try {
+            if (Files.exists(idPath)) {
+                String id = Files.readString(idPath).trim();
+                if (!id.isEmpty()) return id;
+            }
+            Files.createDirectories(metadataDir);
+            String id = UUID.randomUUID().toString();
+            Path tmpPath = metadataDir.resolve("backup-id.tmp");
+            Files.writeString(tmpPath, id + "\n");
+            Files.move(tmpPath, idPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return id;
+        } catch (IOException e) {
+            logger.warn("Unable to read or create the id of destPath", e);
+            return null;
+        }
+    }
+
+    // Content of a backed up file, written out by the store holding it
+    private interface Backup {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static void restoreFile(String fileName, long lastModified, Backup backup, Path targetPath, List<String> failedPaths) {
+        Path target = targetPath.resolve(fileName);
+        Path tmpPath = FileCopier.temporaryPath(target);
+        try {
+            Files.createDirectories(target.getParent());
+            try (OutputStream out = Files.newOutputStream(tmpPath)) {
+                backup.writeTo(out);
+            }
+            Files.move(tmpPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.setLastModifiedTime(target, FileTime.from(lastModified, TimeUnit.SECONDS));
+            logger.debug("File successfully restored: {}", target);
+        } catch (IOException e) {
+            logger.error("Unable to restore {}", fileName, e);
+            failedPaths.add(fileName);
+            try {
+                Files.deleteIfExists(tmpPath);
+            } catch (IOException ignored) {
+                // Only a temporary file
+            }
+        }
+    }
+
+    // Writes the backup of path (a file or folder relative to srcPath) below targetPath as it was backed up last, read
+    // from the repository, the packs, the compressed copies or the latest generation as per the store mode.
+    // Returns the files that could not be restored, throws NoSuchFileException if the backup holds nothing at path
+    public List<String> restore(String path, Path targetPath) throws IOException {
+        String prefix = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+        List<String> failedPaths = new ArrayList<>();
+        int restored = 0;
+
+        if (this.storeMode == StoreMode.DEDUP) {
+            DedupStore store = new DedupStore(this.destBasePath, this.averageChunkSize);
+            try {
+                for (String fileName : store.fileNames(prefix)) {
+                    restoreFile(fileName, store.lastModified(fileName), out -> store.restore(fileName, out), targetPath, failedPaths);
+                    restored++;
+                }
+            } finally {
+                store.finish();
+            }
+            if (restored == 0) throw new NoSuchFileException(prefix, null, "not in the repository at " + this.destBasePath);
+            logger.info("Restored {} files of {} to {}", restored - failedPaths.size(), prefix, targetPath);
+            return failedPaths;
+        }
+
+        Path root = this.destBasePath;
+        if (this.storeMode == StoreMode.SNAPSHOT) {
+            root = new SnapshotManager(this.destBasePath, this.retainHourly, this.retainDaily, this.retainWeekly).latest();
+            if (root == null) throw new NoSuchFileException(this.destBasePath.toString(), null, "holds no completed generation");
+        }
+        PackStore packs = this.storeMode == StoreMode.PACK ? new PackStore(this.destBasePath, this.packThreshold) : null;
+        // Compressed copies are read whatever compress is set to now, an earlier run may have written them
+        BlockCompressor blockCompressor = new BlockCompressor(this.compressionLevel);
+        try {
+            if (packs != null) {
+                for (String fileName : packs.fileNames(prefix)) {
+                    restoreFile(fileName, packs.lastModified(fileName), out -> packs.restore(fileName, out), targetPath, failedPaths);
+                    restored++;
+                }
+            }
+
+            List<Path> copies = new ArrayList<>();
+            Path start = root.resolve(prefix);
+            if (Files.isRegularFile(BlockCompressor.compressedPath(start))) copies.add(BlockCompressor.compressedPath(start));
+            if (Files.exists(start)) {
+                Files.walkFileTree(start, new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (attrs.isRegularFile() && !file.getFileName().toString().endsWith(FileCopier.temporarySuffix)) copies.add(file);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+            for (Path copy : copies) {
+                String fileName = root.relativize(copy).toString();
+                long lastModified = Files.getLastModifiedTime(copy).to(TimeUnit.SECONDS);
+                if (fileName.endsWith(BlockCompressor.suffix)) {
+                    fileName = fileName.substring(0, fileName.length() - BlockCompressor.suffix.length());
+                    restoreFile(fileName, lastModified, out -> blockCompressor.restore(copy, out), targetPath, failedPaths);
+                } else {
+                    restoreFile(fileName, lastModified, out -> Files.copy(copy, out), targetPath, failedPaths);
+                }
+                restored++;
+            }
+        } finally {
+            blockCompressor.close();
+            if (packs != null) packs.finish();
+        }
+        if (restored == 0) throw new NoSuchFileException(root.resolve(prefix).toString(), null, "is not in the backup");
+        logger.info("Restored {} files of {} to {}", restored - failedPaths.size(), prefix, targetPath);
+        return failedPaths;
     }
 
     public String backupAssets(String[] assets, List<String> copiedFiles, List<String> failedPaths) {
@@ -105,17 +887,210 @@ public class HDDBackup {
             }
 
             Files.createDirectories(this.destBasePath);
+            scheduleDisks();
+            this.fileCopier = FileCopier.create(this.srcBasePath, this.destBasePath, this.copyMethod, this.copyBufferSize,
+                    this.fsyncPolicy, this.fsyncBatchSize, this.ioThrottle);
+            Path metadataDir = this.destBasePath.resolve(metadataDirName);
+            this.destRoot = this.destBasePath;
+            this.referenceRoot = this.destBasePath;
+            // Large files of pack mode are copied like in plain mode, delta transfer included
+            if (this.storeMode == StoreMode.PACK) this.packStore = new PackStore(this.destBasePath, this.packThreshold);
+            // Generations link the plain files of each other and the repository has its own format
+            if (this.compress && (this.storeMode == StoreMode.PLAIN || this.storeMode == StoreMode.PACK)) {
+                this.compressor = new BlockCompressor(this.compressionLevel);
+            } else if (this.compress) logger.warn("Compression is not available in {} mode, copies are stored as they are", this.storeMode);
+            if (this.storeMode == StoreMode.DEDUP) this.dedupStore = new DedupStore(this.destBasePath, this.averageChunkSize);
+            else if (this.storeMode == StoreMode.SNAPSHOT) {
+                this.snapshotManager = new SnapshotManager(this.destBasePath, this.retainHourly, this.retainDaily, this.retainWeekly);
+                this.destRoot = this.snapshotManager.begin();
+                this.referenceRoot = this.snapshotManager.previous();
+            } else if (this.deltaThreshold > 0) {
+                // Never in snapshot mode, in place writes would change every generation sharing the file
+                this.deltaTransfer = new DeltaTransfer(this.destBasePath, metadataDir, this.deltaThreshold, this.deltaBlockSize);
+                this.deltaTransfer.recover();
+            }
+
+            // Generations only hold what the source holds already, the packs and the repository keep replaced files
+            if (this.mirrorSource && this.storeMode == StoreMode.PLAIN) {
+                this.mirror = new Mirror(this.destRoot, metadataDir, this.trashDays, this.compressor != null);
+            } else if (this.mirrorSource) logger.warn("Mirror mode is not available in {} mode, deleted files are kept", this.storeMode);
+
+            // Each store mode has its own manifest, so switching modes never skips files the new layout lacks
+            String modeSuffix = this.storeMode == StoreMode.PLAIN ? "" : "-" + this.storeMode.name().toLowerCase();
+            if (this.useManifest) {
+                Path manifestPath = metadataDir.resolve("manifest" + modeSuffix);
+                this.manifest = this.referenceRoot == null && this.snapshotManager != null ? Manifest.empty(manifestPath) : Manifest.open(manifestPath);
+            }
+
+            if (this.verifyCopies) {
+                this.hashCache = HashCache.open(metadataDir.resolve("hash-cache" + modeSuffix));
+                this.verifier = new Verifier(this.hashCache, metadataDir.resolve("scrub-cursor" + modeSuffix),
+                        metadataDir.resolve("scrub-fresh" + modeSuffix));
+                this.verifyTarget = verifierTarget(this.destRoot);
+
+                // Scrubs what the previous run left behind, before anything is linked to or compared against it
+                if (this.scrubBudgetMillis > 0 && (this.referenceRoot != null || this.dedupStore != null)) {
+                    RunMetrics.Phase phase = RunMetrics.current().phase("scrub");
+                    try {
+                        this.corruptedFiles.addAll(this.verifier.scrub(verifierTarget(this.referenceRoot), this.scrubBudgetMillis, this.scrubThreads));
+                    } finally {
+                        phase.close();
+                    }
+                    RunMetrics.current().count("files_corrupted", this.corruptedFiles.size());
+                    this.suspects.addAll(this.corruptedFiles);
+                }
+            }
+
+            // Snapshot generations have to link every file and files failing the scrub can be anywhere,
+            // so both always walk everything
+            // and so does a destination without a manifest, the journal can't tell what is missing from it
+            String destinationId = this.changeJournal == null ? null : destinationId(metadataDir);
+            ChangeJournal.Scan scan = this.changeJournal == null ? null : this.changeJournal.claim(destinationId);
+            boolean rescanChangedOnly = scan != null && !scan.isFull() && this.snapshotManager == null && this.suspects.isEmpty()
+                    && (this.manifest == null || this.manifest.size() > 0);
+            if (this.snapshotManager == null) {
+                this.checkpoint = Checkpoint.open(metadataDir.resolve("checkpoint" + modeSuffix), this::syncCopies);
+                this.resume = this.checkpoint.isResuming() && this.suspects.isEmpty();
+                this.sweepTemporary = this.checkpoint.wasInterrupted();
+            }
+            if (this.manifest != null && (rescanChangedOnly || this.resume)) {
+                // Entries of the files this run doesn't look at are carried over
+                boolean resuming = this.resume;
+                this.manifest.keepUnlessRescanned(fileName -> (!rescanChangedOnly || scan.covers(fileName))
+                        && !(resuming && this.checkpoint.covers(fileName)));
+            }
 
+            // Written to by all copy workers, handed over to copiedFiles once every asset is done
+            Queue<String> copiedQueue = new ConcurrentLinkedQueue<>();
+            Map<String, CopyEngine.Batch> batches = new LinkedHashMap<>();
+
+            RunMetrics.Phase walk = RunMetrics.current().phase("walk");
             for (String asset : assets) {
+                CopyEngine.Batch batch = this.copyEngine.newBatch(asset);
+                batches.put(asset, batch);
+                if (this.resume && this.checkpoint.covers(assetName(asset))) {
+                    logger.info("Asset was completed by the interrupted run: {}", asset);
+                    continue;
+                }
+                try {
+                    if (rescanChangedOnly) copyChangedFolders(asset, scan, copiedQueue, batch);
+                    else copyNewOrAlteredFiles(this.srcBasePath.resolve(asset), Integer.MAX_VALUE, copiedQueue, batch);
+                } catch (RuntimeException e) {
+                    batch.fail(e);
+                }
+            }
+            if (this.mirror != null) moveRenamedFiles(copiedQueue);
+            walk.close();
+
+            for (Map.Entry<String, CopyEngine.Batch> entry : batches.entrySet()) {
                 try {
-                    copyNewOrAlteredFiles(this.srcBasePath.resolve(asset), copiedFiles);
+                    entry.getValue().await();
+                    if (this.checkpoint != null) this.checkpoint.assetDone(assetName(entry.getKey()));
                 } catch (RuntimeException e) {
-                    failedPaths.add(this.srcBasePath.resolve(asset).toString());
-                    logger.info("Gracefully handled RuntimeException for path: {}", this.srcBasePath.resolve(asset));
+                    failedPaths.add(this.srcBasePath.resolve(entry.getKey()).toString());
+                    logger.info("Gracefully handled RuntimeException for path: {}", this.srcBasePath.resolve(entry.getKey()));
+                }
+            }
+            copiedFiles.addAll(copiedQueue);
+            RunMetrics.current().count("paths_failed", failedPaths.size());
+
+            // Deletions only once every asset is backed up, nothing is deleted for an asset that failed
+            if (this.mirror != null) {
+                int deleted;
+                RunMetrics.Phase phase = RunMetrics.current().phase("delete");
+                try {
+                    deleted = this.mirror.purge();
+                } finally {
+                    phase.close();
+                }
+                RunMetrics.current().count("paths_deleted", deleted);
+                logger.info("Mirror: {} paths deleted at the source were removed from destPath", deleted);
+            }
+
+            // Copies that may not have reached the disk, or packed files whose index records were lost, must not
+            // make it into the manifest: the next run would never look at them again
+            boolean flushed = true;
+            try {
+                this.fileCopier.finish();
+                if (this.dedupStore != null) this.dedupStore.finish();
+                if (this.packStore != null) this.packStore.finish();
+            } catch (IOException e) {
+                logger.error("Unable to flush copied files to destPath", e);
+                failedPaths.add(this.destBasePath.toString());
+                RunMetrics.current().count("paths_failed");
+                flushed = false;
+            }
+
+            // A generation missing some asset never becomes the latest one, nor pushes a complete one out of retention.
+            // Its manifest isn't kept either, the next run compares against the previous generation
+            boolean snapshotCommitted = false;
+            if (this.snapshotManager != null) {
+                try {
+                    if (failedPaths.isEmpty()) {
+                        this.snapshotManager.commit();
+                        snapshotCommitted = true;
+                    } else this.snapshotManager.abandon();
+                } catch (IOException e) {
+                    logger.error("Unable to complete the snapshot generation", e);
+                }
+            }
+
+            if (this.manifest != null && flushed && (this.snapshotManager == null || snapshotCommitted)) {
+                try {
+                    this.manifest.commit();
+                } catch (IOException e) {
+                    // Only costs a full comparison against destPath in the next run
+                    logger.error("Unable to update the manifest", e);
                 }
             }
 
-            return Utils.messageTextBuilder(copiedFiles, failedPaths, failedPaths.size() == assets.length);
+            if (this.mirror != null) {
+                try {
+                    this.mirror.save();
+                } catch (IOException e) {
+                    // Only costs copying renamed files again in the next run
+                    logger.error("Unable to save the mirror index", e);
+                }
+            }
+
+            if (this.hashCache != null) {
+                try {
+                    this.hashCache.save();
+                } catch (IOException e) {
+                    logger.error("Unable to save the hash cache", e);
+                }
+                try {
+                    if (this.scrubBudgetMillis > 0) this.verifier.save();
+                } catch (IOException e) {
+                    // Only costs waiting for the scrub cursor to get to this run's copies
+                    logger.error("Unable to save the copies for the next scrub", e);
+                }
+            }
+
+            // A failed run keeps the claimed journal, its folders are walked again next time. So does a resumed one:
+            // it skipped the folders the interrupted run had done, files changed in them since are only in the journal
+            if (scan != null && failedPaths.isEmpty() && !this.resume) this.changeJournal.complete(destinationId);
+
+            // The checkpoint only outlives an interrupted run. Kept for failed paths (a file that is never readable)
+            // it would have the next runs skip every folder this one finished, edits made there included
+            if (this.checkpoint != null) {
+                try {
+                    this.checkpoint.complete();
+                } catch (IOException e) {
+                    logger.error("Unable to remove the checkpoint", e);
+                }
+            }
+
+            String message = Utils.messageTextBuilder(copiedFiles, failedPaths, failedPaths.size() == assets.length, this.report);
+            if (copiedFiles.size() > BackupReport.listLimit) {
+                try {
+                    this.fileListAttachment = this.report.writeFileList(copiedFiles);
+                } catch (IOException e) {
+                    logger.error("Unable to write the list of copied files", e);
+                }
+            }
+            if (!this.corruptedFiles.isEmpty()) message += Utils.scrubTextBuilder(this.corruptedFiles, this.dedupStore == null);
+            return message;
 
         } catch (IOException e) {
             String text = "<b>Backup Failed</b> ❌\n\n" +
@@ -123,6 +1098,12 @@ public class HDDBackup {
             logger.error("Error while creating destBasePath", e);
             logger.warn("Hard Disk backup skipped");
             return text;
+        } finally {
+            this.copyEngine.close();
+            if (this.ioThrottle != null) this.ioThrottle.close();
+            if (this.checkpoint != null) this.checkpoint.close();
+            if (this.compressor != null) this.compressor.close();
+            if (this.manifest != null) this.manifest.close();
         }
     }
-}
\ No newline at end of file
+}
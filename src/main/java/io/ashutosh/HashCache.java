@@ -0,0 +1,119 @@
+package io.ashutosh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    CRC32C of every verified file, kept at destPath/.udev-backup/hash-cache
+    --------------------------------------
+    magic(int) count(int) then count * [path(UTF) size(long) lastModified(long) crc(int)]
+
+    An entry is only valid for the size and last modified time it was computed for.
+ */
+public class HashCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(HashCache.class);
+
+    private static final int magic = 0x55444843; // "UDHC"
+
+    static class Entry {
+        final long size;
+        final long lastModified;
+        final int crc;
+
+        Entry(long size, long lastModified, int crc) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.crc = crc;
+        }
+    }
+
+    private final Path cachePath;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private HashCache(Path cachePath) {
+        this.cachePath = cachePath;
+    }
+
+    public static HashCache open(Path cachePath) {
+        HashCache cache = new HashCache(cachePath);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cachePath), 1 << 16))) {
+            if (in.readInt() != magic) {
+                logger.warn("Hash cache {} is not readable, starting with an empty one", cachePath);
+                return cache;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String fileName = in.readUTF();
+                cache.entries.put(fileName, new Entry(in.readLong(), in.readLong(), in.readInt()));
+            }
+            logger.info("Loaded hash cache with {} entries from {}", count, cachePath);
+        } catch (NoSuchFileException e) {
+            logger.info("No hash cache found at {}", cachePath);
+        } catch (EOFException e) {
+            logger.warn("Hash cache {} is truncated, keeping the {} entries read", cachePath, cache.entries.size());
+        } catch (IOException e) {
+            logger.warn("Unable to read hash cache {}", cachePath, e);
+        }
+        return cache;
+    }
+
+    // Cached CRC32C if the file still has the size and last modified time it was hashed with
+    public Integer lookup(String fileName, long size, long lastModified) {
+        Entry entry = this.entries.get(fileName);
+        if (entry == null || entry.size != size || entry.lastModified != lastModified) return null;
+        return entry.crc;
+    }
+
+    Entry get(String fileName) {
+        return this.entries.get(fileName);
+    }
+
+    public void put(String fileName, long size, long lastModified, int crc) {
+        this.entries.put(fileName, new Entry(size, lastModified, crc));
+    }
+
+    public void remove(String fileName) {
+        this.entries.remove(fileName);
+    }
+
+    public List<String> sortedFileNames() {
+        List<String> fileNames = new ArrayList<>(this.entries.keySet());
+        Collections.sort(fileNames);
+        return fileNames;
+    }
+
+    public void save() throws IOException {
+        Files.createDirectories(this.cachePath.getParent());
+        Path tmp = this.cachePath.resolveSibling(this.cachePath.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            List<Map.Entry<String, Entry>> snapshot = new ArrayList<>(this.entries.entrySet());
+            out.writeInt(magic);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> entry : snapshot) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().size);
+                out.writeLong(entry.getValue().lastModified);
+                out.writeInt(entry.getValue().crc);
+            }
+        }
+        Files.move(tmp, this.cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("Hash cache saved with {} entries: {}", this.entries.size(), this.cachePath);
+    }
+}
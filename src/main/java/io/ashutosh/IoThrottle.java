@@ -0,0 +1,150 @@
+package io.ashutosh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Adaptive limit on the copy rate, so the desktop stays usable while a backup runs on a spinning disk
+    --------------------------------------
+    Every second the average time the source and destination disks took per completed request is read from sysfs.
+    Above latencyTargetMillis the other processes waiting on the disk are feeling the backup: the rate is halved,
+    down to minRate. Below half the target it grows by a quarter, until it is unlimited again (AIMD, like TCP).
+
+    A backup running alone makes the requests slow all by itself, on a USB disk well past any sensible target, and
+    nobody is waiting on them. So latency only counts while other processes read from the disks: the bytes read
+    from the devices minus the ones this process read (/proc/self/io) come to at least contentionBytes. Their
+    writes are left out, they mostly go through the page cache without anyone waiting on them. Without
+    /proc/self/io the two can't be told apart and copies are never slowed down.
+
+    Copy workers call acquire() for every chunk they move and sleep while they are ahead of the rate.
+ */
+public class IoThrottle implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(IoThrottle.class);
+
+    private static final long sampleMillis = 1000;
+    private static final double minRate = 1024 * 1024;
+    // Growing past this the limit is dropped altogether
+    private static final double maxRate = 1024.0 * 1024 * 1024;
+    // Idle time only builds up this much credit, so a pause isn't followed by a burst
+    private static final long burstNanos = TimeUnit.MILLISECONDS.toNanos(200);
+    // Read by other processes during a sample for the disks to count as shared
+    private static final long contentionBytes = 256 * 1024;
+    private static final Path processIo = Paths.get("/proc/self/io");
+
+    private final List<BlockDevice> devices;
+    private final long latencyTargetMillis;
+    private final ScheduledExecutorService sampler;
+    private final long[][] lastRequests;
+    private long lastOwnReads;
+    private final LongAdder acquired = new LongAdder();
+
+    // Bytes per second, 0 while unlimited
+    private volatile double rate = 0;
+    private long nextFree = System.nanoTime();
+    private long backoffs = 0;
+
+    public IoThrottle(List<BlockDevice> devices, long latencyTargetMillis) {
+        this.devices = devices;
+        this.latencyTargetMillis = latencyTargetMillis;
+        this.lastRequests = new long[devices.size()][];
+        for (int idx = 0; idx < devices.size(); idx++) this.lastRequests[idx] = requests(devices.get(idx));
+        this.lastOwnReads = ownReads();
+        if (this.lastOwnReads < 0) logger.warn("Unable to read the I/O counters of the process, copies are not throttled");
+
+        this.sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "io-throttle");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sampler.scheduleAtFixedRate(this::sample, sampleMillis, sampleMillis, TimeUnit.MILLISECONDS);
+        logger.info("Copies throttled when {} take more than {} ms per request", devices, latencyTargetMillis);
+    }
+
+    private static long[] requests(BlockDevice device) {
+        try {
+            return device.requests();
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Bytes this process read from storage so far, -1 if unknown
+    private static long ownReads() {
+        try {
+            for (String line : Files.readAllLines(processIo)) {
+                if (line.startsWith("read_bytes:")) return Long.parseLong(line.substring(11).trim());
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Unable to read {}", processIo, e);
+        }
+        return -1;
+    }
+
+    private void sample() {
+        // Average milliseconds per request since the last sample, the worst of all devices
+        double latency = 0;
+        long deviceReads = 0;
+        for (int idx = 0; idx < this.devices.size(); idx++) {
+            long[] requests = requests(this.devices.get(idx));
+            long[] last = this.lastRequests[idx];
+            this.lastRequests[idx] = requests;
+            if (requests == null || last == null) continue;
+            deviceReads += requests[2] - last[2];
+            if (requests[0] > last[0]) latency = Math.max(latency, (double) (requests[1] - last[1]) / (requests[0] - last[0]));
+        }
+        long ownReads = ownReads();
+        boolean shared = ownReads >= 0 && this.lastOwnReads >= 0 && deviceReads - (ownReads - this.lastOwnReads) >= contentionBytes;
+        this.lastOwnReads = ownReads;
+
+        double copied = this.acquired.sumThenReset() * 1000.0 / sampleMillis;
+        double current = this.rate;
+        if (shared && latency > this.latencyTargetMillis) {
+            // Halved from what actually got through, a limit far above it wouldn't slow anything down
+            double limit = current == 0 ? copied : Math.min(current, Math.max(copied, minRate));
+            this.rate = Math.max(minRate, limit / 2);
+            this.backoffs++;
+            RunMetrics.current().count("throttle_backoffs");
+            logger.debug("Disk latency {} ms, copy rate limited to {} KB/s", String.format("%.1f", latency), (long) (this.rate / 1024));
+        } else if (current > 0 && (!shared || latency < this.latencyTargetMillis / 2.0)) {
+            this.rate = current * 1.25 > maxRate ? 0 : current * 1.25;
+        }
+    }
+
+    // Blocks until bytes more can be moved without going over the rate
+    public void acquire(long bytes) throws IOException {
+        this.acquired.add(bytes);
+        double current = this.rate;
+        if (current == 0) return;
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            this.nextFree = Math.max(this.nextFree, now - burstNanos) + (long) (bytes * 1e9 / current);
+            waitNanos = this.nextFree - now;
+        }
+        if (waitNanos <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+
+    @Override
+    public void close() {
+        this.sampler.shutdownNow();
+        logger.info("Copy rate was limited {} times for the disk latency", this.backoffs);
+    }
+}
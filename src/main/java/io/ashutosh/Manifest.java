@@ -0,0 +1,276 @@
+package io.ashutosh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Predicate;
+
+/*
+    Binary manifest of the files present on destPath, kept at destPath/.udev-backup/manifest
+    --------------------------------------
+    header:  magic(int) version(int) count(int) reserved(int) poolOffset(long)
+    records: count * [pathHash(long) size(long) lastModified(long) poolPos(int) pathLen(int) flags(int)]
+    pool:    UTF-8 bytes of all relative paths
+
+    The file is memory mapped and looked up through an open addressing table of record indexes,
+    so the heap cost is a single int per slot no matter how long the paths are.
+    size and lastModified are the ones of the source file, flags tell how it is stored (compressedFlag).
+ */
+public class Manifest implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(Manifest.class);
+
+    private static final int magic = 0x5544424D; // "UDBM"
+    private static final int version = 2;
+    private static final int headerSize = 24;
+    private static final int recordSize = 36;
+
+    static final int compressedFlag = 1;
+
+    private final Path manifestPath;
+    private final ByteBuffer mapped;
+    private final int count;
+    private final long poolOffset;
+    // Slot holds recordIndex + 1, 0 marks an empty slot
+    private final int[] table;
+    private final int mask;
+
+    private final Path recordsTmp;
+    private final Path poolTmp;
+    private DataOutputStream recordsOut;
+    private DataOutputStream poolOut;
+    private int newCount = 0;
+    private int newPoolSize = 0;
+    // Set when only part of the assets is walked, entries of files outside the walked folders are kept on commit
+    private Predicate<String> rescanned;
+
+    private Manifest(Path manifestPath, ByteBuffer mapped) {
+        this.manifestPath = manifestPath;
+        this.recordsTmp = manifestPath.resolveSibling(manifestPath.getFileName() + ".records.tmp");
+        this.poolTmp = manifestPath.resolveSibling(manifestPath.getFileName() + ".pool.tmp");
+
+        if (mapped == null) {
+            this.mapped = null;
+            this.count = 0;
+            this.poolOffset = 0;
+            this.table = new int[1];
+            this.mask = 0;
+            return;
+        }
+        this.mapped = mapped;
+        this.count = mapped.getInt(8);
+        this.poolOffset = mapped.getLong(16);
+
+        int capacity = Integer.highestOneBit(Math.max(2, this.count * 2 - 1)) << 1;
+        this.table = new int[capacity];
+        this.mask = capacity - 1;
+        for (int idx = 0; idx < this.count; idx++) {
+            int slot = (int) mix(hashAt(idx)) & this.mask;
+            while (this.table[slot] != 0) slot = (slot + 1) & this.mask;
+            this.table[slot] = idx + 1;
+        }
+    }
+
+    public static Manifest open(Path manifestPath) {
+        try (FileChannel channel = FileChannel.open(manifestPath, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            if (channel.size() < headerSize || channel.size() > Integer.MAX_VALUE || buffer.getInt(0) != magic || buffer.getInt(4) != version) {
+                logger.warn("Manifest {} is not readable, every file will be compared against destPath", manifestPath);
+                return new Manifest(manifestPath, null);
+            }
+            long expectedRecordsEnd = headerSize + (long) buffer.getInt(8) * recordSize;
+            if (buffer.getLong(16) != expectedRecordsEnd || expectedRecordsEnd > channel.size()) {
+                logger.warn("Manifest {} is truncated, every file will be compared against destPath", manifestPath);
+                return new Manifest(manifestPath, null);
+            }
+            Manifest manifest = new Manifest(manifestPath, buffer);
+            logger.info("Loaded manifest with {} entries from {}", manifest.count, manifestPath);
+            return manifest;
+        } catch (NoSuchFileException e) {
+            logger.info("No manifest found at {}, every file will be compared against destPath", manifestPath);
+            return new Manifest(manifestPath, null);
+        } catch (IOException e) {
+            logger.warn("Unable to read manifest {}, every file will be compared against destPath", manifestPath, e);
+            return new Manifest(manifestPath, null);
+        }
+    }
+
+    // Manifest that knows no files yet but is written out on commit
+    public static Manifest empty(Path manifestPath) {
+        return new Manifest(manifestPath, null);
+    }
+
+    static long hash(byte[] bytes) {
+        // FNV-1a 64 bit
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long mix(long hash) {
+        return hash ^ (hash >>> 32);
+    }
+
+    private long hashAt(int idx) {
+        return this.mapped.getLong(headerSize + idx * recordSize);
+    }
+
+    private boolean pathEquals(int idx, byte[] path) {
+        int recordPos = headerSize + idx * recordSize;
+        int poolPos = this.mapped.getInt(recordPos + 24);
+        int pathLen = this.mapped.getInt(recordPos + 28);
+        if (pathLen != path.length) return false;
+        long base = this.poolOffset + poolPos;
+        for (int i = 0; i < pathLen; i++) {
+            if (this.mapped.get((int) (base + i)) != path[i]) return false;
+        }
+        return true;
+    }
+
+    private int find(byte[] path, long hash) {
+        if (this.mapped == null) return -1;
+        int slot = (int) mix(hash) & this.mask;
+        while (this.table[slot] != 0) {
+            int idx = this.table[slot] - 1;
+            if (hashAt(idx) == hash && pathEquals(idx, path)) return idx;
+            slot = (slot + 1) & this.mask;
+        }
+        return -1;
+    }
+
+    private String pathAt(int idx) {
+        int recordPos = headerSize + idx * recordSize;
+        int poolPos = this.mapped.getInt(recordPos + 24);
+        byte[] path = new byte[this.mapped.getInt(recordPos + 28)];
+        ByteBuffer pool = this.mapped.duplicate();
+        pool.position((int) (this.poolOffset + poolPos));
+        pool.get(path);
+        return new String(path, StandardCharsets.UTF_8);
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    // true if the file was recorded with the same size and last modified time in the previous run
+    public boolean isUpToDate(String fileName, long size, long lastModified) {
+        byte[] path = fileName.getBytes(StandardCharsets.UTF_8);
+        int idx = find(path, hash(path));
+        if (idx < 0) return false;
+        int recordPos = headerSize + idx * recordSize;
+        return this.mapped.getLong(recordPos + 8) == size && this.mapped.getLong(recordPos + 16) == lastModified;
+    }
+
+    // true if the file was stored compressed in the previous run
+    public boolean isCompressed(String fileName) {
+        byte[] path = fileName.getBytes(StandardCharsets.UTF_8);
+        int idx = find(path, hash(path));
+        return idx >= 0 && (this.mapped.getInt(headerSize + idx * recordSize + 32) & compressedFlag) != 0;
+    }
+
+    // Records a file that is known to be present and up to date on destPath for the next run
+    public void record(String fileName, long size, long lastModified) throws IOException {
+        record(fileName, size, lastModified, 0);
+    }
+
+    public void record(String fileName, long size, long lastModified, boolean compressed) throws IOException {
+        record(fileName, size, lastModified, compressed ? compressedFlag : 0);
+    }
+
+    private synchronized void record(String fileName, long size, long lastModified, int flags) throws IOException {
+        if (this.recordsOut == null) {
+            Files.createDirectories(this.manifestPath.getParent());
+            this.recordsOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(this.recordsTmp), 1 << 16));
+            this.poolOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(this.poolTmp), 1 << 16));
+        }
+        byte[] path = fileName.getBytes(StandardCharsets.UTF_8);
+        this.recordsOut.writeLong(hash(path));
+        this.recordsOut.writeLong(size);
+        this.recordsOut.writeLong(lastModified);
+        this.recordsOut.writeInt(this.newPoolSize);
+        this.recordsOut.writeInt(path.length);
+        this.recordsOut.writeInt(flags);
+        this.poolOut.write(path);
+        this.newPoolSize += path.length;
+        this.newCount++;
+    }
+
+    // Entries of files for which rescanned is false are carried over to the new manifest as they are
+    public void keepUnlessRescanned(Predicate<String> rescanned) {
+        this.rescanned = rescanned;
+    }
+
+    // Replaces the manifest on disk with everything recorded in this run
+    public synchronized void commit() throws IOException {
+        if (this.recordsOut != null && this.rescanned != null && this.mapped != null) {
+            int kept = 0;
+            for (int idx = 0; idx < this.count; idx++) {
+                String fileName = pathAt(idx);
+                if (this.rescanned.test(fileName)) continue;
+                int recordPos = headerSize + idx * recordSize;
+                record(fileName, this.mapped.getLong(recordPos + 8), this.mapped.getLong(recordPos + 16), this.mapped.getInt(recordPos + 32));
+                kept++;
+            }
+            logger.info("Kept {} manifest entries of folders that were not rescanned", kept);
+        }
+        if (this.recordsOut == null) {
+            logger.info("Nothing recorded in this run, manifest left as is");
+            return;
+        }
+        this.recordsOut.close();
+        this.poolOut.close();
+
+        Path manifestTmp = this.manifestPath.resolveSibling(this.manifestPath.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(manifestTmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             FileChannel records = FileChannel.open(this.recordsTmp, StandardOpenOption.READ);
+             FileChannel pool = FileChannel.open(this.poolTmp, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(headerSize);
+            header.putInt(magic).putInt(version).putInt(this.newCount).putInt(0)
+                    .putLong(headerSize + (long) this.newCount * recordSize);
+            header.flip();
+            while (header.hasRemaining()) out.write(header);
+            transferAll(records, out);
+            transferAll(pool, out);
+            out.force(true);
+        }
+        Files.move(manifestTmp, this.manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(this.recordsTmp);
+        Files.deleteIfExists(this.poolTmp);
+        logger.info("Manifest updated with {} entries: {}", this.newCount, this.manifestPath);
+    }
+
+    private static void transferAll(FileChannel from, FileChannel to) throws IOException {
+        long position = 0;
+        long size = from.size();
+        while (position < size) position += from.transferTo(position, size - position, to);
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            if (this.recordsOut != null) this.recordsOut.close();
+            if (this.poolOut != null) this.poolOut.close();
+            Files.deleteIfExists(this.recordsTmp);
+            Files.deleteIfExists(this.poolTmp);
+        } catch (IOException e) {
+            logger.warn("Unable to clean up temporary manifest files", e);
+        }
+    }
+}
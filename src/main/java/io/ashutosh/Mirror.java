@@ -0,0 +1,337 @@
+package io.ashutosh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static io.ashutosh.Utils.fileTimeComparator;
+
+/*
+    Mirror mode: files deleted or renamed at the source are deleted or moved on destPath as well
+    --------------------------------------
+    Each source folder and its copy are listed, sorted by name and merge-joined in a single linear pass:
+        source only:      new file, or a renamed one when the source index knows its inode under a path that is gone
+        destination only: deleted at the source, moved to the trash once its asset is backed up
+        both:             compared with the attributes of the listing, the copy isn't looked up again
+
+    mirror-index: magic(int) count(int) then count * [path(UTF) fileKey(UTF) size(long) lastModified(long)]
+                  the file key (device and inode) of every source file as of the last run
+    trash/<yyyy-MM-dd_HH-mm-ss>/: what each run deleted, kept for trashDays (0 deletes right away)
+ */
+public class Mirror {
+
+    private static final Logger logger = LoggerFactory.getLogger(Mirror.class);
+
+    private static final int magic = 0x55444D49; // "UDMI"
+    private static final DateTimeFormatter trashFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
+
+    // A file or folder found by a listing, attrs is null for a file without a copy
+    public static class Entry {
+        final String name;
+        final BasicFileAttributes attrs;
+        // The copy is <name>.udz
+        final boolean compressed;
+
+        Entry(String name, BasicFileAttributes attrs, boolean compressed) {
+            this.name = name;
+            this.attrs = attrs;
+            this.compressed = compressed;
+        }
+
+        public boolean exists() {
+            return this.attrs != null;
+        }
+    }
+
+    static final Entry missing = new Entry(null, null, false);
+
+    private static class Source {
+        final String fileKey;
+        final long size;
+        final long lastModified;
+
+        Source(String fileKey, long size, long lastModified) {
+            this.fileKey = fileKey;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    // A new path holding a file the last run saw under another path, resolved once every deleted path is known
+    public static class Rename {
+        final String from;
+        final FileInfo fileInfo;
+        final CopyEngine.Batch batch;
+        final Runnable done;
+
+        Rename(String from, FileInfo fileInfo, CopyEngine.Batch batch, Runnable done) {
+            this.from = from;
+            this.fileInfo = fileInfo;
+            this.batch = batch;
+            this.done = done;
+        }
+    }
+
+    private final Path destRoot;
+    private final Path indexPath;
+    private final Path trashDir;
+    private final int trashDays;
+    private final boolean compressed;
+    private final String runName = LocalDateTime.now().format(trashFormat);
+
+    // Source files as of the last run, by path and by file key. Updated with what this run walks and saved at the end
+    private final Map<String, Source> index = new HashMap<>();
+    private final Map<String, String> pathsByKey = new HashMap<>();
+    // Paths only found on destPath, with the batch of their asset: they are only deleted if the asset was backed up
+    private final Map<String, CopyEngine.Batch> deletions = new LinkedHashMap<>();
+    private final List<Rename> renames = new ArrayList<>();
+
+    public Mirror(Path destRoot, Path metadataDir, int trashDays, boolean compressed) {
+        this.destRoot = destRoot;
+        this.indexPath = metadataDir.resolve("mirror-index");
+        this.trashDir = metadataDir.resolve("trash");
+        this.trashDays = trashDays;
+        this.compressed = compressed;
+        loadIndex();
+        purgeTrash();
+    }
+
+    private void loadIndex() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.indexPath), 1 << 16))) {
+            if (in.readInt() != magic) {
+                logger.warn("Mirror index {} is not readable, renames are copied again this time", this.indexPath);
+                return;
+            }
+            int count = in.readInt();
+            for (int idx = 0; idx < count; idx++) {
+                String fileName = in.readUTF();
+                Source source = new Source(in.readUTF(), in.readLong(), in.readLong());
+                this.index.put(fileName, source);
+                this.pathsByKey.put(source.fileKey, fileName);
+            }
+        } catch (NoSuchFileException e) {
+            logger.info("No mirror index found at {}", this.indexPath);
+        } catch (EOFException e) {
+            logger.warn("Mirror index {} is truncated, keeping the {} entries read", this.indexPath, this.index.size());
+        } catch (IOException e) {
+            logger.warn("Unable to read mirror index {}", this.indexPath, e);
+        }
+    }
+
+    // Drops the trash of the runs older than trashDays
+    private void purgeTrash() {
+        if (!Files.isDirectory(this.trashDir)) return;
+        LocalDateTime oldest = LocalDateTime.now().minusDays(this.trashDays);
+        try (var runs = Files.newDirectoryStream(this.trashDir)) {
+            for (Path run : runs) {
+                try {
+                    if (!LocalDateTime.parse(run.getFileName().toString(), trashFormat).isBefore(oldest)) continue;
+                } catch (DateTimeParseException e) {
+                    continue;
+                }
+                SnapshotManager.deleteTree(run);
+                logger.info("Emptied trash of {}", run.getFileName());
+            }
+        } catch (IOException e) {
+            logger.error("Unable to empty the trash at {}", this.trashDir, e);
+        }
+    }
+
+    // Entries of a source folder sorted by name, links as what they point to
+    public static List<Entry> listSource(Path dir) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isSymbolicLink()) attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                entries.add(new Entry(file.getFileName().toString(), attrs, false));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        entries.sort(Comparator.comparing(entry -> entry.name));
+        return entries;
+    }
+
+    // Entries of a folder on destPath sorted by the name of their source, a compressed copy x.udz is listed as x.
+    // The bookkeeping at the top of destPath is left out
+    public List<Entry> listCopies(Path dir, Set<String> sourceNames) throws IOException {
+        if (!Files.isDirectory(dir)) return List.of();
+        boolean top = dir.equals(this.destRoot);
+        Map<String, Entry> entries = new HashMap<>();
+        Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String name = file.getFileName().toString();
+                if (top && (name.equals(HDDBackup.metadataDirName) || name.equals(PackStore.packDirName))) return FileVisitResult.CONTINUE;
+                if (compressed && attrs.isRegularFile() && name.endsWith(BlockCompressor.suffix) && !sourceNames.contains(name)) {
+                    String sourceName = name.substring(0, name.length() - BlockCompressor.suffix.length());
+                    // A plain copy wins over a compressed one left behind, the same as when looking copies up
+                    entries.putIfAbsent(sourceName, new Entry(sourceName, attrs, true));
+                } else entries.put(name, new Entry(name, attrs, false));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        sorted.sort(Comparator.comparing(entry -> entry.name));
+        return sorted;
+    }
+
+    // Records a source file walked in this run
+    public void seen(FileInfo fileInfo, Object fileKey) {
+        if (fileKey == null) return;
+        this.index.put(fileInfo.fileName, new Source(fileKey.toString(), fileInfo.size, fileInfo.lastModified));
+    }
+
+    // Path the last run saw the new file under, if it is the same inode unchanged
+    public String renamedFrom(FileInfo fileInfo, Object fileKey) {
+        if (fileKey == null) return null;
+        String from = this.pathsByKey.get(fileKey.toString());
+        if (from == null || from.equals(fileInfo.fileName)) return null;
+        Source source = this.index.get(from);
+        if (source == null || source.size != fileInfo.size || source.lastModified != fileInfo.lastModified) return null;
+        return from;
+    }
+
+    public void renamed(String from, FileInfo fileInfo, CopyEngine.Batch batch, Runnable done) {
+        this.renames.add(new Rename(from, fileInfo, batch, done));
+    }
+
+    public List<Rename> renames() {
+        return this.renames;
+    }
+
+    // A copy only found on destPath, path is the one of its source
+    public void deleted(String path, Entry copy, CopyEngine.Batch batch) {
+        this.deletions.put(copyPath(path, copy), batch);
+    }
+
+    private static String copyPath(String path, Entry copy) {
+        return copy.compressed ? path + BlockCompressor.suffix : path;
+    }
+
+    // true if the copy of the source path, or a folder above it, is about to be deleted
+    private boolean pendingDeletion(String path) {
+        if (this.deletions.containsKey(path + BlockCompressor.suffix)) return true;
+        for (String parent = path; parent != null; parent = parentOf(parent)) {
+            if (this.deletions.containsKey(parent)) return true;
+        }
+        return false;
+    }
+
+    private static String parentOf(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? null : path.substring(0, slash);
+    }
+
+    // Moves the copy of a renamed file from its old path to the new one. Returns the moved copy, or null if the old
+    // path still exists at the source or its copy doesn't hold the file anymore
+    public Entry moveCopy(String from, FileInfo fileInfo) throws IOException {
+        if (!pendingDeletion(from)) return null;
+        Path fromPath = this.destRoot.resolve(from);
+        Path toPath = this.destRoot.resolve(fileInfo.fileName);
+        boolean fromCompressed = false;
+        if (!Files.isRegularFile(fromPath) && this.compressed) {
+            fromPath = BlockCompressor.compressedPath(fromPath);
+            toPath = BlockCompressor.compressedPath(toPath);
+            fromCompressed = true;
+        }
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(fromPath, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        long size = fromCompressed ? BlockCompressor.originalSize(fromPath) : attrs.size();
+        if (!attrs.isRegularFile() || size != fileInfo.size
+                || fileTimeComparator(attrs.lastModifiedTime(), FileTime.from(fileInfo.lastModified, TimeUnit.SECONDS))) return null;
+
+        Files.move(fromPath, toPath, StandardCopyOption.ATOMIC_MOVE);
+        this.deletions.remove(this.destRoot.relativize(fromPath).toString());
+        this.index.remove(from);
+        return new Entry(fileInfo.fileName, attrs, fromCompressed);
+    }
+
+    // Moves a copy out of the way right away, when a file replaced a folder at the source or the other way round
+    public void discard(String path, Entry copy) throws IOException {
+        remove(copyPath(path, copy));
+        this.index.remove(path);
+    }
+
+    // Moves what was deleted at the source to the trash, for every asset that was backed up completely.
+    // Returns the number of paths deleted
+    public int purge() {
+        int purged = 0;
+        this.deletions.values().removeIf(CopyEngine.Batch::failed);
+        for (String path : this.deletions.keySet()) {
+            try {
+                remove(path);
+                purged++;
+            } catch (IOException e) {
+                logger.error("Unable to delete the copy of {}", path, e);
+            }
+        }
+        // Index entries of the deleted paths and of every file below them
+        this.index.keySet().removeIf(this::pendingDeletion);
+        this.deletions.clear();
+        return purged;
+    }
+
+    private void remove(String path) throws IOException {
+        Path destPath = this.destRoot.resolve(path);
+        String name = destPath.getFileName().toString();
+        // Temporary files of interrupted copies aren't worth keeping
+        if (this.trashDays == 0 || name.endsWith(FileCopier.temporarySuffix)) {
+            SnapshotManager.deleteTree(destPath);
+            logger.debug("Deleted {}", destPath);
+            return;
+        }
+        Path trashPath = this.trashDir.resolve(this.runName).resolve(path);
+        Files.createDirectories(trashPath.getParent());
+        Files.move(destPath, trashPath, StandardCopyOption.ATOMIC_MOVE);
+        logger.debug("Moved {} to the trash", destPath);
+    }
+
+    public void save() throws IOException {
+        Files.createDirectories(this.indexPath.getParent());
+        Path tmp = this.indexPath.resolveSibling(this.indexPath.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(magic);
+            out.writeInt(this.index.size());
+            for (Map.Entry<String, Source> entry : this.index.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue().fileKey);
+                out.writeLong(entry.getValue().size);
+                out.writeLong(entry.getValue().lastModified);
+            }
+        }
+        Files.move(tmp, this.indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("Mirror index saved with {} entries: {}", this.index.size(), this.indexPath);
+    }
+}
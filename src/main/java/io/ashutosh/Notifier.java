@@ -0,0 +1,78 @@
+package io.ashutosh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Sends Telegram updates from a queue of its own, so a slow or unreachable Telegram never holds up a backup stage
+public class Notifier implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(Notifier.class);
+
+    private final Telegram telegram;
+    // Single thread, so updates arrive in the order they were sent
+    private final ExecutorService queue = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "notifier");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public Notifier(Telegram telegram) {
+        this.telegram = telegram;
+    }
+
+    public void sendMessageUpdate(String message) {
+        send(() -> this.telegram.sendMessageUpdate(message));
+    }
+
+    public void sendVideoUpdate(String outputDir, String videoFileName) {
+        send(() -> this.telegram.sendVideoUpdate(outputDir, videoFileName));
+    }
+
+    // The document is deleted once it has been sent, or could not be
+    public void sendDocumentUpdate(Path documentPath, String fileName, String caption) {
+        send(() -> {
+            try {
+                this.telegram.sendDocumentUpdate(documentPath, fileName, caption);
+            } finally {
+                try {
+                    Files.deleteIfExists(documentPath);
+                } catch (IOException e) {
+                    logger.warn("Unable to delete {}", documentPath, e);
+                }
+            }
+        });
+    }
+
+    // A failed update is logged and the ones queued after it are still sent
+    private void send(Runnable update) {
+        this.queue.execute(() -> {
+            RunMetrics.Phase phase = RunMetrics.current().phase("notify");
+            try {
+                update.run();
+            } catch (RuntimeException e) {
+                logger.error("Unable to send Telegram update", e);
+            } finally {
+                phase.close();
+            }
+        });
+    }
+
+    // Waits for the queued updates to go out before the process exits
+    @Override
+    public void close() {
+        this.queue.shutdown();
+        try {
+            if (!this.queue.awaitTermination(2, TimeUnit.MINUTES)) logger.warn("Telegram updates still pending were dropped");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.telegram.close();
+    }
+}
@@ -0,0 +1,504 @@
+package io.ashutosh;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.classic.methods.HttpPut;
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.entity.UrlEncodedFormEntity;
+import org.apache.hc.client5.http.impl.classic.BasicHttpClientResponseHandler;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http.message.BasicNameValuePair;
+import org.apache.hc.core5.net.URIBuilder;
+import org.apache.hc.core5.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Uploads the assets through the pCloud HTTP API instead of the web interface
+    --------------------------------------
+    Files are sent in chunks with upload_create/upload_write/upload_save by uploadThreads workers sharing one
+    connection pool. Unfinished uploads are remembered in outputDir/pcloud-uploads, so an interrupted run
+    continues a large file at the offset pCloud reports instead of starting over.
+
+    Assets end up in the same place as with the browser upload: asset folders and files directly below cloudPath.
+    Files already confirmed in the cloud ledger with the same size and last modified time are skipped.
+ */
+public class PCloudApiUploader implements CloudBackup {
+
+    private static final Logger logger = LoggerFactory.getLogger(PCloudApiUploader.class);
+
+    private static final int maxAttempts = 3;
+
+    private final Path srcBasePath;
+    private final String username;
+    private final String password;
+    private final String apiHost;
+    private final String cloudPath;
+    private final int uploadThreads;
+    private final int chunkSize;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final CloseableHttpClient client;
+    private final ThreadLocal<ByteBuffer> chunkBuffers;
+
+    private final Path pendingUploadsPath;
+    private final Properties pendingUploads = new Properties();
+    private final Set<String> createdFolders = ConcurrentHashMap.newKeySet();
+    private final LongAdder bytesUploaded = new LongAdder();
+    private final List<String> failedPaths = new ArrayList<>();
+    // Files confirmed in the cloud, the ledger is only read before and written after the uploads
+    private final Set<String> confirmed = ConcurrentHashMap.newKeySet();
+    private Manifest ledger;
+    private int alreadyUploaded = 0;
+    private String auth;
+
+    public PCloudApiUploader(String srcBasePath, String username, String password, String apiHost, String cloudPath,
+                             String outputDir, int uploadThreads, int chunkSize) {
+        this.srcBasePath = Paths.get(srcBasePath);
+        this.username = username;
+        this.password = password;
+        this.apiHost = apiHost.endsWith("/") ? apiHost.substring(0, apiHost.length() - 1) : apiHost;
+        this.cloudPath = cloudPath.length() > 1 && cloudPath.endsWith("/") ? cloudPath.substring(0, cloudPath.length() - 1) : cloudPath;
+        this.uploadThreads = uploadThreads;
+        this.chunkSize = chunkSize;
+        this.chunkBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(chunkSize));
+        this.pendingUploadsPath = Paths.get(outputDir).resolve("pcloud-uploads");
+
+        // One keep-alive connection per upload worker, plus one for folder creation on the walking thread
+        PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(uploadThreads + 1)
+                .setMaxConnPerRoute(uploadThreads + 1)
+                .build();
+        this.client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom().setResponseTimeout(Timeout.ofMinutes(5)).build())
+                .build();
+    }
+
+    // Sends the request and returns the JSON response, pCloud reports errors with a non zero "result"
+    private JsonNode call(HttpUriRequestBase request) throws IOException {
+        String response = this.client.execute(request, new BasicHttpClientResponseHandler());
+        JsonNode json = this.objectMapper.readTree(response);
+        if (json.path("result").asInt(-1) != 0) {
+            throw new IOException("pCloud API call " + request.getPath().replaceAll("\\?.*", "") + " failed: "
+                    + json.path("result").asText() + " " + json.path("error").asText());
+        }
+        return json;
+    }
+
+    private URIBuilder method(String methodName) throws IOException {
+        try {
+            URIBuilder uri = new URIBuilder(this.apiHost + "/" + methodName);
+            if (this.auth != null) uri.addParameter("auth", this.auth);
+            return uri;
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid pCloud API host: " + this.apiHost, e);
+        }
+    }
+
+    private JsonNode get(URIBuilder uri) throws IOException {
+        try {
+            return call(new HttpGet(uri.build()));
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // The password never leaves the machine: it is hashed with a one time digest from the server, and the
+    // credentials go in the body of a POST so that they don't end up in any URL log
+    private void login() throws IOException {
+        String digest = get(method("getdigest")).path("digest").asText();
+        String passwordDigest = sha1(this.password + sha1(this.username.toLowerCase(Locale.ROOT)) + digest);
+        HttpPost request;
+        try {
+            request = new HttpPost(method("userinfo").build());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        request.setEntity(new UrlEncodedFormEntity(List.of(
+                new BasicNameValuePair("getauth", "1"),
+                new BasicNameValuePair("logout", "1"),
+                new BasicNameValuePair("username", this.username),
+                new BasicNameValuePair("digest", digest),
+                new BasicNameValuePair("passworddigest", passwordDigest)), StandardCharsets.UTF_8));
+        JsonNode json = call(request);
+        this.auth = json.path("auth").asText();
+        logger.info("Logged in to pCloud API at {}", this.apiHost);
+    }
+
+    private static String sha1(String text) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void logout() {
+        if (this.auth == null) return;
+        try {
+            get(method("logout"));
+        } catch (IOException e) {
+            logger.warn("Unable to log out of pCloud API", e);
+        }
+        this.auth = null;
+    }
+
+    // Only remembered once created, a folder that failed is tried again for its next file
+    private void createFolder(String folderPath) throws IOException {
+        if (this.createdFolders.contains(folderPath)) return;
+        get(method("createfolderifnotexists").addParameter("path", folderPath));
+        this.createdFolders.add(folderPath);
+    }
+
+    private String cloudPathOf(Path srcPath, Path assetPath) {
+        String relative = assetPath.getParent().relativize(srcPath).toString();
+        return this.cloudPath.equals("/") ? "/" + relative : this.cloudPath + "/" + relative;
+    }
+
+    private static String parentOf(String cloudFilePath) {
+        int slash = cloudFilePath.lastIndexOf('/');
+        return slash == 0 ? "/" : cloudFilePath.substring(0, slash);
+    }
+
+    private void loadPendingUploads() {
+        try (InputStream in = Files.newInputStream(this.pendingUploadsPath)) {
+            this.pendingUploads.load(in);
+        } catch (NoSuchFileException e) {
+            // Nothing was left unfinished
+        } catch (IOException e) {
+            logger.warn("Unable to read unfinished uploads from {}", this.pendingUploadsPath, e);
+        }
+    }
+
+    private void savePendingUploads() {
+        synchronized (this.pendingUploads) {
+            Path tmp = this.pendingUploadsPath.resolveSibling(this.pendingUploadsPath.getFileName() + ".tmp");
+            try {
+                Files.createDirectories(this.pendingUploadsPath.getParent());
+                try (OutputStream out = Files.newOutputStream(tmp)) {
+                    this.pendingUploads.store(out, "Unfinished pCloud uploads: cloud path = uploadid size lastModified");
+                }
+                Files.move(tmp, this.pendingUploadsPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                logger.warn("Unable to save unfinished uploads to {}", this.pendingUploadsPath, e);
+            }
+        }
+    }
+
+    // Continues the unfinished upload of the same file version if pCloud still knows it, else starts a new one
+    // Only files of more than one chunk are remembered, anything smaller is cheaper to send again
+    private long[] resumeOrCreate(String cloudFilePath, FileInfo fileInfo) throws IOException {
+        String pending = this.pendingUploads.getProperty(cloudFilePath);
+        if (pending != null) {
+            String[] parts = pending.split(" ");
+            if (Long.parseLong(parts[1]) == fileInfo.size && Long.parseLong(parts[2]) == fileInfo.lastModified) {
+                try {
+                    JsonNode info = get(method("upload_info").addParameter("uploadid", parts[0]));
+                    long offset = info.path("size").asLong(0);
+                    logger.info("Resuming upload of {} at {} of {} bytes", cloudFilePath, offset, fileInfo.size);
+                    return new long[]{Long.parseLong(parts[0]), offset};
+                } catch (IOException e) {
+                    logger.info("Unfinished upload of {} expired, starting over", cloudFilePath);
+                }
+            }
+        }
+        long uploadId = get(method("upload_create")).path("uploadid").asLong();
+        if (fileInfo.size > this.chunkSize) {
+            this.pendingUploads.setProperty(cloudFilePath, uploadId + " " + fileInfo.size + " " + fileInfo.lastModified);
+            savePendingUploads();
+        }
+        return new long[]{uploadId, 0};
+    }
+
+    private void uploadFile(Path srcFilePath, String cloudFilePath, FileInfo fileInfo) throws IOException {
+        long[] upload = resumeOrCreate(cloudFilePath, fileInfo);
+        long uploadId = upload[0];
+        long offset = upload[1];
+        ByteBuffer buffer = this.chunkBuffers.get();
+
+        try (FileChannel channel = FileChannel.open(srcFilePath, StandardOpenOption.READ)) {
+            int failedAttempts = 0;
+            long backoffMillis = 1000;
+            while (offset < fileInfo.size) {
+                buffer.clear();
+                buffer.limit((int) Math.min(this.chunkSize, fileInfo.size - offset));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) throw new IOException("File shrank while uploading: " + srcFilePath);
+                }
+                try {
+                    HttpPut put = new HttpPut(method("upload_write")
+                            .addParameter("uploadid", Long.toString(uploadId))
+                            .addParameter("uploadoffset", Long.toString(offset)).build());
+                    put.setEntity(new ByteArrayEntity(buffer.array(), 0, buffer.limit(), ContentType.APPLICATION_OCTET_STREAM));
+                    call(put);
+                    offset += buffer.limit();
+                    this.bytesUploaded.add(buffer.limit());
+                    failedAttempts = 0;
+                    backoffMillis = 1000;
+                } catch (IOException e) {
+                    if (++failedAttempts >= maxAttempts) throw e;
+                    logger.warn("Chunk upload of {} failed, retrying in {} ms", cloudFilePath, backoffMillis, e);
+                    try {
+                        Thread.sleep(backoffMillis);
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting to retry the upload of " + cloudFilePath);
+                    }
+                    backoffMillis *= 2;
+                    // Continue from what actually arrived, a chunk might have been written before the connection dropped
+                    offset = get(method("upload_info").addParameter("uploadid", Long.toString(uploadId))).path("size").asLong(offset);
+                } catch (URISyntaxException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+
+        get(method("upload_save")
+                .addParameter("uploadid", Long.toString(uploadId))
+                .addParameter("path", parentOf(cloudFilePath))
+                .addParameter("name", cloudFilePath.substring(cloudFilePath.lastIndexOf('/') + 1))
+                .addParameter("mtime", Long.toString(fileInfo.lastModified)));
+        if (this.pendingUploads.remove(cloudFilePath) != null) savePendingUploads();
+        logger.debug("File successfully uploaded to pCloud: {}", cloudFilePath);
+    }
+
+    // Creates the folder and its parents on the walking thread, so they exist before any of their files are saved
+    private void createFolders(String folderPath) throws IOException {
+        if (folderPath.equals("/") || this.createdFolders.contains(folderPath)) return;
+        createFolders(parentOf(folderPath));
+        createFolder(folderPath);
+    }
+
+    private void submit(Path file, Path assetPath, FileInfo fileInfo, ExecutorService executor, Map<String, Future<?>> uploads) throws IOException {
+        String cloudFilePath = cloudPathOf(file, assetPath);
+        if (this.ledger.isUpToDate(cloudFilePath, fileInfo.size, fileInfo.lastModified)) {
+            this.alreadyUploaded++;
+            return;
+        }
+        try {
+            createFolders(parentOf(cloudFilePath));
+        } catch (IOException e) {
+            // Only this file fails, the next one in the folder tries to create it again
+            logger.error("Unable to create the folder of {} in pCloud", cloudFilePath, e);
+            this.failedPaths.add(cloudFilePath);
+            return;
+        }
+        uploads.put(cloudFilePath, executor.submit(() -> {
+            uploadFile(file, cloudFilePath, fileInfo);
+            this.ledger.record(cloudFilePath, fileInfo.size, fileInfo.lastModified);
+            this.confirmed.add(cloudFilePath);
+            return null;
+        }));
+    }
+
+    private void submitAsset(Path assetPath, ExecutorService executor, Map<String, Future<?>> uploads) throws IOException {
+        Files.walkFileTree(assetPath, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isSymbolicLink()) attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                if (attrs.isDirectory()) return FileVisitResult.CONTINUE;
+                submit(file, assetPath, FileInfo.of(srcBasePath.relativize(file).toString(), attrs), executor, uploads);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Files of the change set that are still there and belong to one of the assets
+    private Map<Path, Path> changedFiles(String[] assets, Set<String> pending) {
+        Map<Path, Path> changed = new LinkedHashMap<>();
+        for (String fileName : pending) {
+            Path file = this.srcBasePath.resolve(fileName);
+            if (!Files.isRegularFile(file)) continue;
+            for (String asset : assets) {
+                Path assetPath = this.srcBasePath.resolve(asset);
+                if (file.startsWith(assetPath)) {
+                    changed.put(file, assetPath);
+                    break;
+                }
+            }
+        }
+        return changed;
+    }
+
+    // Login, runs while the HDD backup is still copying
+    @Override
+    public void prepare() {
+        // A daemon runs one uploader for many backups, only the connection pool is kept between them
+        this.pendingUploads.clear();
+        this.createdFolders.clear();
+        this.bytesUploaded.reset();
+        this.failedPaths.clear();
+        this.confirmed.clear();
+        this.alreadyUploaded = 0;
+        RunMetrics.Phase phase = RunMetrics.current().phase("login");
+        try {
+            loadPendingUploads();
+            login();
+        } catch (IOException e) {
+            logger.error("Unable to log in to pCloud API", e);
+            throw new RuntimeException(e);
+        } finally {
+            phase.close();
+        }
+    }
+
+    // Uploads what is missing in the cloud and returns the text of the Telegram update. When the cloud is in sync
+    // only the change set of the HDD backup is looked at, otherwise every asset is compared with the ledger
+    @Override
+    public String upload(String[] assets, CloudSync cloudSync) {
+        long startTime = System.nanoTime();
+        List<String> uploadedFiles = new ArrayList<>();
+        AtomicInteger threadNum = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(this.uploadThreads, runnable -> {
+            Thread thread = new Thread(runnable, "upload-worker-" + threadNum.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ledger = cloudSync.ledger();
+        this.ledger.keepUnlessRescanned(this.confirmed::contains);
+        try {
+            boolean inSync = cloudSync.inSync();
+            Map<Path, Path> changed = inSync ? changedFiles(assets, cloudSync.pending()) : null;
+            if (inSync) logger.info("Cloud is in sync, uploading {} changed files", changed.size());
+            else logger.info("Cloud is not known to be in sync, comparing every asset with the ledger");
+
+            Map<String, Future<?>> uploads = new LinkedHashMap<>();
+            if (inSync) {
+                for (Map.Entry<Path, Path> entry : changed.entrySet()) {
+                    Path file = entry.getKey();
+                    try {
+                        submit(file, entry.getValue(), FileInfo.of(this.srcBasePath.relativize(file).toString(),
+                                Files.readAttributes(file, BasicFileAttributes.class)), executor, uploads);
+                    } catch (NoSuchFileException e) {
+                        logger.info("File was removed before it could be uploaded: {}", file);
+                    }
+                }
+            } else {
+                for (String asset : assets) {
+                    Path assetPath = this.srcBasePath.resolve(asset);
+                    if (!Files.exists(assetPath)) {
+                        logger.warn("File/Folder does not exist: {}", assetPath);
+                        continue;
+                    }
+                    try {
+                        submitAsset(assetPath, executor, uploads);
+                    } catch (IOException e) {
+                        logger.error("Unable to walk the file tree for the path: {}", assetPath, e);
+                        this.failedPaths.add(assetPath.toString());
+                    }
+                }
+            }
+
+            for (Map.Entry<String, Future<?>> upload : uploads.entrySet()) {
+                try {
+                    upload.getValue().get();
+                    uploadedFiles.add(upload.getKey());
+                } catch (ExecutionException e) {
+                    logger.error("Unable to upload file to pCloud: {}", upload.getKey(), e.getCause());
+                    this.failedPaths.add(upload.getKey());
+                }
+            }
+
+            try {
+                this.ledger.commit();
+            } catch (IOException e) {
+                // Only costs uploading the files again
+                logger.error("Unable to update the cloud ledger", e);
+            }
+        } catch (IOException e) {
+            logger.error("pCloud API backup failed", e);
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
+            this.ledger.close();
+        }
+
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        RunMetrics.current().addPhaseTime("upload", System.nanoTime() - startTime);
+        RunMetrics.current().count("files_uploaded", uploadedFiles.size());
+        RunMetrics.current().count("bytes_uploaded", this.bytesUploaded.sum());
+        RunMetrics.current().count("uploads_failed", this.failedPaths.size());
+        logger.info("Uploaded {} files, {} bytes in {} s, {} files already in the cloud", uploadedFiles.size(),
+                this.bytesUploaded.sum(), String.format("%.1f", seconds), this.alreadyUploaded);
+        StringBuilder text = new StringBuilder();
+        text.append(this.failedPaths.isEmpty() ? "<b>pCloud Backup Successful</b> ✅\n" : "<b>pCloud Backup Partially Successful</b> ✅\n");
+        if (uploadedFiles.isEmpty() && this.failedPaths.isEmpty()) {
+            text.append("\n<b><i>All files are already up to date in pCloud!</i></b>\n");
+        } else {
+            text.append("\n<i>").append(uploadedFiles.size()).append(" files, ")
+                    .append(this.bytesUploaded.sum() / (1024 * 1024)).append(" MB uploaded in ")
+                    .append(String.format("%.0f", seconds)).append(" s</i>\n");
+        }
+        if (!this.failedPaths.isEmpty()) {
+            text.append("\n<b><i>List of paths that failed to upload:</i></b>\n");
+            for (int idx = 0; idx < this.failedPaths.size(); idx++) text.append(idx + 1).append(". ").append(Utils.escapeHtml(this.failedPaths.get(idx))).append("\n");
+        }
+        return text.toString();
+    }
+
+    @Override
+    public boolean hasFailures() {
+        return !this.failedPaths.isEmpty();
+    }
+
+    @Override
+    public void close() {
+        logout();
+    }
+
+    @Override
+    public void shutdown() {
+        try {
+            this.client.close();
+        } catch (IOException e) {
+            logger.warn("Unable to close pCloud API client", e);
+        }
+    }
+}
@@ -9,21 +9,24 @@ import org.openqa.selenium.support.ui.WebDriverWait;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.function.BiPredicate;
 
-public class PCloudBackup {
+public class PCloudBackup implements CloudBackup {
 
     private static final Logger logger = LoggerFactory.getLogger(PCloudBackup.class);
     private static PCloudBackup pCloudBackup = null;
@@ -33,11 +36,22 @@ public class PCloudBackup {
     private final String username;
     private final String password;
 
-    // Prefix for the name of the frames
-    private final String frameNamePrefix = "frame-";
-    // Count of frames saved
-    private Long seqNum = 0L;
-
+    private ScreenRecorder screenRecorder;
+    private UploadTracker uploadTracker;
+    private String outputDir;
+    private String videoFileName;
+    private int recordingMaxFps = 10;
+    private long recordingBufferBytes = 64L * 1024 * 1024;
+    private boolean uploaded = false;
+    private String apiHost = "https://api.pcloud.com";
+
+    // Adds up the files every file input of the page receives, before the web interface gets to see them
+    private static final String countSelectedFiles = "if (!window.udevSelected) {"
+            + " window.udevSelected = {files: 0, bytes: 0};"
+            + " document.addEventListener('change', event => {"
+            + " if (!event.target.files) return;"
+            + " for (const file of event.target.files) { window.udevSelected.files++; window.udevSelected.bytes += file.size; }"
+            + " }, true); }";
 
     private PCloudBackup(String srcBasePath, String username, String password) {
         this.srcBasePath = Paths.get(srcBasePath);
@@ -130,9 +144,41 @@ public class PCloudBackup {
         logger.info("Login Successful");
     }
 
-    private void screenRecording(DevTools devTools, String tmpDir) {
+    // true if the profile still holds a valid session: the file manager comes up instead of the login form
+    private boolean sessionValid() {
+        this.webDriver.navigate().to("https://my.pcloud.com/");
+        By fileInput = By.xpath("//input[@type='file']");
+        By email = By.name("email");
+        try {
+            new WebDriverWait(this.webDriver, Duration.ofSeconds(20)).until(driver ->
+                    Utils.elementPresent(false).test(driver, fileInput) || Utils.elementPresent(true).test(driver, email));
+        } catch (TimeoutException e) {
+            return false;
+        }
+        return Utils.elementPresent(false).test(this.webDriver, fileInput);
+    }
+
+    // Keeps the session cookies between runs, readable by the owner only
+    private Path profileDir() {
+        Path profileDir = Paths.get(this.outputDir, "chrome-profile");
+        try {
+            Files.createDirectories(profileDir);
+            Files.setPosixFilePermissions(profileDir, PosixFilePermissions.fromString("rwx------"));
+        } catch (UnsupportedOperationException e) {
+            logger.warn("Unable to restrict permissions of {}", profileDir);
+        } catch (IOException e) {
+            logger.error("Unable to create Chrome profile directory: {}", profileDir, e);
+            throw new RuntimeException(e);
+        }
+        return profileDir;
+    }
+
+    private void screenRecording(DevTools devTools) {
+        this.screenRecorder = new ScreenRecorder(Paths.get(this.outputDir, this.videoFileName), this.recordingMaxFps, this.recordingBufferBytes);
+        this.screenRecorder.start();
+
         devTools.send(Page.startScreencast(
-                Optional.empty(),
+                Optional.of(Page.StartScreencastFormat.JPEG),
                 Optional.empty(),
                 Optional.empty(),
                 Optional.empty(),
@@ -140,41 +186,40 @@ public class PCloudBackup {
 
         devTools.addListener(Page.screencastFrame(), screencastFrame -> {
             devTools.send(Page.screencastFrameAck(screencastFrame.getSessionId()));
-            byte[] frameImage = Base64.getDecoder().decode(screencastFrame.getData());
-            try {
-                OutputStream out = new BufferedOutputStream(new FileOutputStream(
-                        tmpDir + "/" + frameNamePrefix + this.seqNum + ".png"));
-                out.write(frameImage);
-                out.close();
-                this.seqNum++;
-            } catch (IOException e) {
-                logger.error("Unable to save frames. Closing the backup process", e);
-                throw new RuntimeException(e);
-            }
+            // Chrome timestamps frames in seconds since epoch
+            long timestamp = screencastFrame.getMetadata().getTimestamp()
+                    .map(time -> (long) (time.toJson().doubleValue() * 1000))
+                    .orElseGet(System::currentTimeMillis);
+            this.screenRecorder.offer(screencastFrame.getData(), timestamp);
         });
     }
 
-    private void setup(String tmpDir) {
+    private void setup() {
         ChromeOptions chromeOptions = new ChromeOptions();
         chromeOptions.setPageLoadStrategy(PageLoadStrategy.EAGER);
         chromeOptions.addArguments("--headless=new");
         chromeOptions.addArguments("--disable-notifications");
         chromeOptions.addArguments("--disable-infobars");
+        chromeOptions.addArguments("--user-data-dir=" + profileDir().toAbsolutePath());
+
+        // Nothing but the pCloud page runs in this browser, so everything starting with it is left out
+        chromeOptions.addArguments("--no-first-run");
+        chromeOptions.addArguments("--no-default-browser-check");
+        chromeOptions.addArguments("--disable-extensions");
+        chromeOptions.addArguments("--disable-default-apps");
+        chromeOptions.addArguments("--disable-background-networking");
+        chromeOptions.addArguments("--disable-component-update");
+        chromeOptions.addArguments("--disable-sync");
+        chromeOptions.addArguments("--disable-client-side-phishing-detection");
+        // File thumbnails are not needed to upload
+        chromeOptions.setExperimentalOption("prefs", Map.of("profile.managed_default_content_settings.images", 2));
 
         this.webDriver = new ChromeDriver(chromeOptions);
         this.webDriver.manage().window().maximize();
 
         this.devTools = ((ChromeDriver) this.webDriver).getDevTools();
         this.devTools.createSession();
-
-        // Create a folder for storing frames
-        try {
-            Files.createDirectories(Paths.get(tmpDir));
-        } catch (IOException e) {
-            logger.error("Unable to create temporary directory: {}", tmpDir, e);
-            throw new RuntimeException(e);
-        }
-        this.screenRecording(this.devTools, tmpDir);
+        this.screenRecording(this.devTools);
     }
 
     private void cleanUp() {
@@ -183,52 +228,250 @@ public class PCloudBackup {
         this.webDriver.quit();
     }
 
-    public void backupAssets(String[] assets, String tmpDir, String outputDir, String videoFileName) {
+    // Where the video of the upload is kept
+    public void setRecording(String outputDir, String videoFileName) {
+        this.outputDir = outputDir;
+        this.videoFileName = videoFileName;
+    }
+
+    // API endpoint the folders of changed files are looked up at, with the session of the browser
+    public void setApiHost(String apiHost) {
+        this.apiHost = apiHost.endsWith("/") ? apiHost.substring(0, apiHost.length() - 1) : apiHost;
+    }
+
+    public void setRecordingLimits(int maxFps, long bufferBytes) {
+        this.recordingMaxFps = maxFps;
+        this.recordingBufferBytes = bufferBytes;
+    }
+
+    // Browser startup and login, runs while the HDD backup is still copying
+    @Override
+    public void prepare() {
+        // A daemon runs one instance for many backups, nothing of the previous upload may leak into this one
+        this.uploaded = false;
+        this.uploadTracker = null;
+        RunMetrics.Phase setupPhase = RunMetrics.current().phase("browser_setup");
         try {
-            this.setup(tmpDir);
-            this.login();
+            this.setup();
+        } finally {
+            setupPhase.close();
+        }
+        RunMetrics.Phase loginPhase = RunMetrics.current().phase("login");
+        try {
+            if (this.sessionValid()) logger.info("Reusing the pCloud session of the Chrome profile");
+            else this.login();
+        } finally {
+            loginPhase.close();
+        }
+    }
 
-            List<String> filePathList = new ArrayList<>();
-            List<String> folderPathList = new ArrayList<>();
-            long cntofAssets = 0L;
+    // When the cloud is in sync only the change set of the HDD backup is uploaded, each file into its folder. Whole
+    // assets are uploaded when it is not, or when the folders of the changed files can't be opened
+    @Override
+    public String upload(String[] assets, CloudSync cloudSync) {
+        boolean inSync = cloudSync.inSync();
+        Map<String, List<String>> pendingFolders = inSync ? pendingFolders(assets, cloudSync.pending()) : null;
+        if (inSync && pendingFolders.isEmpty()) {
+            logger.info("Nothing changed since the last pCloud backup, skipping the upload");
+            return "<b>pCloud Backup Successful</b> ✅\n\n" +
+                    "<b><i>All files are already up to date in pCloud!</i></b>\n";
+        }
+        if (!inSync || !uploadPending(pendingFolders)) uploadAssets(assets);
+        this.uploaded = true;
+        finishRecording();
+
+        List<String> failures = this.uploadTracker.getFailures();
+        if (failures.isEmpty()) {
+            return "<b>pCloud Backup Successful</b> ✅\n\n" +
+                    "<b><i>Video recording of the upload follows</i></b>\n";
+        }
+        StringBuilder text = new StringBuilder("<b>pCloud Backup Partially Successful</b> ✅\n");
+        text.append("\n<b><i>List of files that failed to upload:</i></b>\n");
+        for (int idx = 0; idx < failures.size(); idx++) text.append(idx + 1).append(". ").append(Utils.escapeHtml(failures.get(idx))).append("\n");
+        text.append("\n<b><i>Video recording of the upload follows</i></b>\n");
+        return text.toString();
+    }
 
-            for (String asset : assets) {
-                Path assetPath = this.srcBasePath.resolve(asset);
-                if (Files.exists(assetPath)) {
-                    cntofAssets++;
-                    if (Files.isDirectory(assetPath)) folderPathList.add(assetPath.toString());
-                    else filePathList.add(assetPath.toString());
-                } else {
-                    logger.warn("File/Folder does not exist: {}", assetPath);
-                }
+    @Override
+    public boolean hasFailures() {
+        // Failures of the web interface itself end the upload with an exception, these are files pCloud rejected
+        return this.uploadTracker != null && !this.uploadTracker.getFailures().isEmpty();
+    }
+
+    @Override
+    public void sendAttachments(Notifier notifier) {
+        if (this.uploaded) notifier.sendVideoUpdate(this.outputDir, this.videoFileName);
+    }
+
+    @Override
+    public void close() {
+        if (this.webDriver == null) return;
+        try {
+            devTools.send(Page.stopScreencast());
+            devTools.clearListeners();
+        } catch (Exception e) {
+            logger.info("Event listeners might be already closed");
+        }
+        this.cleanUp();
+        this.webDriver = null;
+        // Keeps what was recorded up to a failure, no-op if the upload already finished the video
+        if (this.screenRecorder != null) this.screenRecorder.finish();
+    }
+
+    // Files and bytes the file inputs received since countSelectedFiles was run
+    private long[] selectedFiles() {
+        Object selected = ((JavascriptExecutor) this.webDriver).executeScript("return window.udevSelected;");
+        if (!(selected instanceof Map<?, ?> counts)) return new long[]{0L, 0L};
+        return new long[]{((Number) counts.get("files")).longValue(), ((Number) counts.get("bytes")).longValue()};
+    }
+
+    private void uploadAssets(String[] assets) {
+        List<String> filePathList = new ArrayList<>();
+        List<String> folderPathList = new ArrayList<>();
+        long cntofAssets = 0L;
+
+        for (String asset : assets) {
+            Path assetPath = this.srcBasePath.resolve(asset);
+            if (Files.exists(assetPath)) {
+                cntofAssets++;
+                if (Files.isDirectory(assetPath)) folderPathList.add(assetPath.toString());
+                else filePathList.add(assetPath.toString());
+            } else {
+                logger.warn("File/Folder does not exist: {}", assetPath);
             }
+        }
+
+        // Up to the uploads settling, the encoding of the recording is a phase of its own
+        RunMetrics.Phase uploadPhase = RunMetrics.current().phase("upload");
+        this.uploadTracker = new UploadTracker(this.devTools);
+        this.uploadTracker.start();
+        try {
+            // The browser already lists every file of a folder for its input, so the expected files are counted there
+            ((JavascriptExecutor) this.webDriver).executeScript(countSelectedFiles);
             if (!filePathList.isEmpty()) fileUpload(Duration.ofSeconds(50), filePathList);
             folderPathList.forEach(folderPath -> folderUpload(Duration.ofSeconds(50), folderPath));
-            uploadChecker(Duration.ofMinutes(20), cntofAssets);
+            awaitUploads(cntofAssets);
+        } finally {
+            this.uploadTracker.stop();
+            uploadPhase.close();
+        }
+    }
 
-            // To get images of the last frame better
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                logger.warn("Timer threw an exception. Ignored");
+    // Files of the change set that are still there, grouped by the pCloud folder the web interface put them in: the
+    // one an asset was uploaded into is the root folder
+    private Map<String, List<String>> pendingFolders(String[] assets, Set<String> pending) {
+        Map<String, List<String>> pendingFolders = new TreeMap<>();
+        for (String fileName : pending) {
+            Path file = this.srcBasePath.resolve(fileName);
+            if (!Files.isRegularFile(file)) continue;
+            for (String asset : assets) {
+                Path assetPath = this.srcBasePath.resolve(asset);
+                if (!file.startsWith(assetPath)) continue;
+                String folder = file.equals(assetPath) ? "/"
+                        : "/" + assetPath.getFileName().resolve(assetPath.relativize(file.getParent()));
+                pendingFolders.computeIfAbsent(folder, key -> new ArrayList<>()).add(file.toString());
+                break;
             }
+        }
+        return pendingFolders;
+    }
 
-            devTools.send(Page.stopScreencast());
-            devTools.clearListeners();
+    // Folder id of the pCloud folder, created if it is missing, -1 if the session of the browser can't get it
+    private long folderId(String folder, String auth) {
+        if (folder.equals("/")) return 0L;
+        String url = this.apiHost + "/createfolderifnotexists?path=" + URLEncoder.encode(folder, StandardCharsets.UTF_8).replace("+", "%20")
+                + "&auth=" + URLEncoder.encode(auth, StandardCharsets.UTF_8);
+        Object response = ((JavascriptExecutor) this.webDriver).executeAsyncScript(
+                "const done = arguments[arguments.length - 1];"
+                        + " fetch(arguments[0]).then(response => response.json()).then(done, error => done({result: -1, error: String(error)}));", url);
+        if (response instanceof Map<?, ?> json && json.get("metadata") instanceof Map<?, ?> metadata
+                && metadata.get("folderid") instanceof Number folderId) return folderId.longValue();
+        logger.warn("Unable to open pCloud folder {}: {}", folder, response instanceof Map<?, ?> json ? json.get("error") : response);
+        return -1L;
+    }
 
-            if (Utils.generateVideoFromFrames(frameNamePrefix, tmpDir, outputDir, videoFileName))
-                logger.info("Successfully generated video from frames: {}/{}", outputDir, videoFileName);
-            else
-                logger.error("Something went wrong! Process generating the frames ended with status code other than 0");
-        } finally {
-            try{
-                devTools.send(Page.stopScreencast());
-                devTools.clearListeners();
-            } catch(Exception e) {
-                logger.info("Event listeners might be already closed");
+    // Uploads the pending files through the file input of their folder, one folder at a time since opening the next
+    // one reloads the page. Returns false, before uploading anything, if a folder can't be opened
+    private boolean uploadPending(Map<String, List<String>> pendingFolders) {
+        Cookie auth = this.webDriver.manage().getCookieNamed("pcauth");
+        if (auth == null) {
+            logger.warn("No pCloud session cookie to open the folders of the changed files with, uploading whole assets");
+            return false;
+        }
+        Map<String, Long> folderIds = new LinkedHashMap<>();
+        for (String folder : pendingFolders.keySet()) {
+            long folderId = folderId(folder, auth.getValue());
+            if (folderId < 0) return false;
+            folderIds.put(folder, folderId);
+        }
+        logger.info("Uploading {} changed files into {} folders", pendingFolders.values().stream().mapToInt(List::size).sum(), pendingFolders.size());
+
+        RunMetrics.Phase uploadPhase = RunMetrics.current().phase("upload");
+        this.uploadTracker = new UploadTracker(this.devTools);
+        this.uploadTracker.start();
+        try {
+            for (Map.Entry<String, List<String>> entry : pendingFolders.entrySet()) {
+                logger.info("Opening pCloud folder: {}", entry.getKey());
+                this.webDriver.navigate().to("https://my.pcloud.com/#page=filemanager&folder=" + folderIds.get(entry.getKey()));
+                // Only the fragment changed, the file manager has to load again to show the folder
+                this.webDriver.navigate().refresh();
+                waitFor(Duration.ofSeconds(50), By.xpath("//input[@type='file' and @multiple='']"), Utils.elementPresent(false));
+                ((JavascriptExecutor) this.webDriver).executeScript(countSelectedFiles);
+                fileUpload(Duration.ofSeconds(50), entry.getValue());
+                awaitUploads(entry.getValue().size());
             }
-            this.cleanUp();
-            Utils.deleteFrames(frameNamePrefix, tmpDir, seqNum);
+        } finally {
+            this.uploadTracker.stop();
+            uploadPhase.close();
+        }
+        return true;
+    }
+
+    // Waits for what the file inputs of the page received, items is what the upload manager of the page lists
+    private void awaitUploads(long items) {
+        long[] selected = selectedFiles();
+        this.uploadTracker.expect(selected[0], selected[1]);
+
+        boolean settled;
+        try {
+            // Without a count of the files the tracker can't tell when the uploads are done, the counter of the page can
+            settled = selected[0] > 0 && this.uploadTracker.await(Duration.ofMinutes(20), Duration.ofMinutes(2));
+        } catch (InterruptedException e) {
+            logger.error("Interrupted while waiting for the uploads to complete", e);
+            throw new RuntimeException(e);
+        }
+        if (!settled && selected[0] > 0 && this.uploadTracker.sawUploads()) {
+            throw new TimeoutException("Uploads did not complete within 20 minutes");
+        } else if (!settled) {
+            // The web interface no longer uploads through the API methods the tracker knows or its files could not be
+            // counted, fall back to its counter
+            uploadChecker(Duration.ofMinutes(20), items);
+        } else {
+            logger.info("Successfully uploaded files and folders!!!");
+        }
+    }
+
+    private void finishRecording() {
+        // To get images of the last frame better
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            logger.warn("Timer threw an exception. Ignored");
+        }
+
+        devTools.send(Page.stopScreencast());
+        devTools.clearListeners();
+
+        boolean encoded;
+        RunMetrics.Phase phase = RunMetrics.current().phase("encode");
+        try {
+            encoded = this.screenRecorder.finish();
+        } finally {
+            phase.close();
         }
+        if (encoded)
+            logger.info("Successfully generated video from frames: {}/{}", this.outputDir, this.videoFileName);
+        else
+            logger.error("Something went wrong! Process encoding the frames ended with status code other than 0");
     }
 }
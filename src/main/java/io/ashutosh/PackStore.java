@@ -0,0 +1,285 @@
+package io.ashutosh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    Files below the pack threshold appended into large pack files at destPath/.packs instead of one file each
+    --------------------------------------
+    pack-NNNNNN.pack: contents of the packed files one after the other, never rewritten
+    pack-NNNNNN.idx:  [pathLength(int) path(UTF-8) offset(long) length(long) lastModified(long) mode(int)] records,
+                      appended after the contents they point to. A length of -1 removes a path that grew out of the pack.
+
+    Creating, closing and setting attributes of a file on an exFAT/NTFS USB disk costs far more than writing a few
+    KB, packing turns all of that into appends to a single open file. The index of every pack is read at start,
+    the last record of a path wins, so a packed file is read with one lookup and one positioned read.
+    Replaced versions stay in the packs as garbage.
+ */
+public class PackStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(PackStore.class);
+
+    private static final int indexMagic = 0x55445049; // "UDPI"
+    private static final long maxPackSize = 512L * 1024 * 1024;
+    private static final int maxNameLength = 64 * 1024;
+    // Size of a record without its path
+    private static final int recordSize = 8 + 8 + 8 + 4;
+
+    static final String packDirName = ".packs";
+
+    private static class Entry {
+        final int packId;
+        final long offset;
+        final long length;
+        final long lastModified;
+        final int mode;
+
+        Entry(int packId, long offset, long length, long lastModified, int mode) {
+            this.packId = packId;
+            this.offset = offset;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.mode = mode;
+        }
+    }
+
+    private final Path packDir;
+    private final long threshold;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // Read channels of the packs, opened once and shared by every reader
+    private final Map<Integer, FileChannel> readers = new HashMap<>();
+
+    private int packId;
+    private FileChannel pack;
+    private long packPosition;
+    private FileChannel indexChannel;
+    private DataOutputStream index;
+    private long packedFiles = 0;
+    private long packedBytes = 0;
+
+    public PackStore(Path destBasePath, long threshold) throws IOException {
+        this.packDir = destBasePath.resolve(packDirName);
+        this.threshold = threshold;
+        Files.createDirectories(this.packDir);
+
+        TreeMap<Integer, Path> indexes = new TreeMap<>();
+        try (var paths = Files.newDirectoryStream(this.packDir, "pack-*.idx")) {
+            for (Path indexPath : paths) {
+                String name = indexPath.getFileName().toString();
+                indexes.put(Integer.parseInt(name.substring(5, name.length() - 4)), indexPath);
+            }
+        }
+        for (Map.Entry<Integer, Path> index : indexes.entrySet()) readIndex(index.getKey(), index.getValue());
+        this.entries.values().removeIf(entry -> entry.length < 0);
+
+        openPack(indexes.isEmpty() ? 1 : indexes.lastKey());
+        logger.info("Packs opened with {} packed files", this.entries.size());
+    }
+
+    private Path packPath(int id) {
+        return this.packDir.resolve(String.format("pack-%06d.pack", id));
+    }
+
+    private Path indexPath(int id) {
+        return this.packDir.resolve(String.format("pack-%06d.idx", id));
+    }
+
+    // Reads the records of one index. Records pointing past the end of the pack, and a torn record at the end, are
+    // what a crash leaves behind: the index is cut back to the last complete record so appending can go on
+    private void readIndex(int id, Path indexPath) throws IOException {
+        long packSize = Files.exists(packPath(id)) ? Files.size(packPath(id)) : 0;
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath), 1 << 16))) {
+            if (in.readInt() != indexMagic) {
+                logger.warn("Pack index {} is not readable, its files will be packed again", indexPath);
+            } else {
+                validLength = 4;
+                while (true) {
+                    int nameLength = in.readInt();
+                    if (nameLength < 0 || nameLength > maxNameLength) break;
+                    byte[] name = new byte[nameLength];
+                    in.readFully(name);
+                    Entry entry = new Entry(id, in.readLong(), in.readLong(), in.readLong(), in.readInt());
+                    if (entry.length >= 0 && entry.offset + entry.length > packSize) break;
+                    this.entries.put(new String(name, StandardCharsets.UTF_8), entry);
+                    validLength += 4 + nameLength + recordSize;
+                }
+            }
+        } catch (EOFException e) {
+            // End of the index
+        }
+        if (validLength < Files.size(indexPath)) {
+            logger.warn("Cutting pack index {} back to {} bytes after an interrupted run", indexPath, validLength);
+            try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            }
+        }
+    }
+
+    private void openPack(int id) throws IOException {
+        closePack();
+        this.packId = id;
+        this.pack = FileChannel.open(packPath(id), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.packPosition = this.pack.size();
+
+        this.indexChannel = FileChannel.open(indexPath(id), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.index = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(this.indexChannel), 1 << 16));
+        if (this.indexChannel.size() == 0) this.index.writeInt(indexMagic);
+    }
+
+    private void closePack() throws IOException {
+        if (this.pack == null) return;
+        sync();
+        this.pack.close();
+        this.index.close();
+    }
+
+    // Makes everything packed so far durable, the contents before the index records pointing to them
+    public synchronized void sync() throws IOException {
+        if (this.pack == null) return;
+        this.pack.force(true);
+        this.index.flush();
+        this.indexChannel.force(true);
+    }
+
+    public boolean accepts(long size) {
+        return size < this.threshold;
+    }
+
+    public boolean contains(String fileName) {
+        return this.entries.containsKey(fileName);
+    }
+
+    public boolean isUpToDate(String fileName, long size, long lastModified) {
+        Entry entry = this.entries.get(fileName);
+        return entry != null && entry.length == size && entry.lastModified == lastModified;
+    }
+
+    private static int permissions(Path srcFilePath) {
+        try {
+            Set<PosixFilePermission> permissions = Files.readAttributes(srcFilePath, PosixFileAttributes.class).permissions();
+            int mode = 0;
+            for (PosixFilePermission permission : PosixFilePermission.values()) {
+                // OWNER_READ first, so the ordinals map onto the bits of 0400 down to 0001
+                if (permissions.contains(permission)) mode |= 1 << (8 - permission.ordinal());
+            }
+            return mode;
+        } catch (UnsupportedOperationException | IOException e) {
+            return 0;
+        }
+    }
+
+    // Reads the file before taking the lock, only the append itself is serialised between the copy workers
+    public void store(String fileName, Path srcFilePath, FileInfo fileInfo) throws IOException {
+        byte[] content = Files.readAllBytes(srcFilePath);
+        int mode = permissions(srcFilePath);
+        synchronized (this) {
+            if (this.packPosition + content.length > maxPackSize && this.packPosition > 0) openPack(this.packId + 1);
+            long offset = this.packPosition;
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) this.packPosition += this.pack.write(buffer, this.packPosition);
+            writeRecord(fileName, offset, content.length, fileInfo.lastModified, mode);
+            this.entries.put(fileName, new Entry(this.packId, offset, content.length, fileInfo.lastModified, mode));
+            this.packedFiles++;
+            this.packedBytes += content.length;
+        }
+    }
+
+    // Drops a file from the packs, once it is stored as a plain copy
+    public synchronized void remove(String fileName) throws IOException {
+        if (this.entries.remove(fileName) == null) return;
+        writeRecord(fileName, 0, -1, 0, 0);
+    }
+
+    private void writeRecord(String fileName, long offset, long length, long lastModified, int mode) throws IOException {
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        this.index.writeInt(name.length);
+        this.index.write(name);
+        this.index.writeLong(offset);
+        this.index.writeLong(length);
+        this.index.writeLong(lastModified);
+        this.index.writeInt(mode);
+    }
+
+    private FileChannel reader(int id) throws IOException {
+        synchronized (this.readers) {
+            FileChannel channel = this.readers.get(id);
+            if (channel == null) {
+                channel = FileChannel.open(packPath(id), StandardOpenOption.READ);
+                this.readers.put(id, channel);
+            }
+            return channel;
+        }
+    }
+
+    // Writes the content of a packed file out
+    public void restore(String fileName, OutputStream out) throws IOException {
+        Entry entry = this.entries.get(fileName);
+        if (entry == null) throw new NoSuchFileException(fileName);
+        FileChannel channel = reader(entry.packId);
+        ByteBuffer data = ByteBuffer.allocate((int) entry.length);
+        while (data.hasRemaining()) {
+            if (channel.read(data, entry.offset + data.position()) < 0) throw new EOFException("Pack " + entry.packId + " is truncated");
+        }
+        out.write(data.array());
+    }
+
+    // Packed files at path or below it, a path relative to srcPath
+    public List<String> fileNames(String path) {
+        List<String> fileNames = new ArrayList<>();
+        for (String fileName : this.entries.keySet()) {
+            if (fileName.equals(path) || fileName.startsWith(path + "/")) fileNames.add(fileName);
+        }
+        Collections.sort(fileNames);
+        return fileNames;
+    }
+
+    // Last modified time of the source (seconds) when the file was packed
+    public long lastModified(String fileName) {
+        Entry entry = this.entries.get(fileName);
+        return entry == null ? 0 : entry.lastModified;
+    }
+
+    // Permission bits of the source file when it was packed, 0 if the source had none
+    public int mode(String fileName) {
+        Entry entry = this.entries.get(fileName);
+        return entry == null ? 0 : entry.mode;
+    }
+
+    // Syncs the current pack and its index, everything packed in this run is only durable after this
+    public synchronized void finish() throws IOException {
+        closePack();
+        this.pack = null;
+        synchronized (this.readers) {
+            for (FileChannel channel : this.readers.values()) channel.close();
+            this.readers.clear();
+        }
+        logger.info("Packs: {} files packed, {} bytes written", this.packedFiles, this.packedBytes);
+    }
+}
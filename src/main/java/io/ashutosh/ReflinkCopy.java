@@ -0,0 +1,59 @@
+package io.ashutosh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+// Clones the file instead of copying its data when srcPath and destPath share a copy-on-write filesystem
+public class ReflinkCopy implements CopyStrategy {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReflinkCopy.class);
+
+    private static final Set<String> cowFileSystems = Set.of("btrfs", "xfs", "bcachefs");
+
+    private volatile boolean enabled;
+
+    public ReflinkCopy(Path srcBasePath, Path destBasePath) {
+        try {
+            FileStore srcStore = Files.getFileStore(srcBasePath);
+            FileStore destStore = Files.getFileStore(destBasePath);
+            this.enabled = srcStore.equals(destStore) && cowFileSystems.contains(srcStore.type());
+            if (this.enabled) logger.info("srcPath and destPath share the {} filesystem {}, files will be cloned", srcStore.type(), srcStore.name());
+        } catch (IOException e) {
+            logger.warn("Unable to determine filesystems of srcPath and destPath, reflink copies disabled", e);
+            this.enabled = false;
+        }
+    }
+
+    @Override
+    public String name() {
+        return "reflink";
+    }
+
+    @Override
+    public boolean copy(Path srcFilePath, Path destFilePath, FileInfo fileInfo) throws IOException {
+        if (!this.enabled) return false;
+
+        // The JDK has no access to the FICLONE ioctl, coreutils cp does it for us
+        ProcessBuilder processBuilder = new ProcessBuilder(
+                "cp", "--reflink=always", "--preserve=mode,timestamps", "-f",
+                srcFilePath.toString(), destFilePath.toString());
+        processBuilder.redirectErrorStream(true);
+        processBuilder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        try {
+            if (processBuilder.start().waitFor() == 0) return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while cloning " + srcFilePath, e);
+        }
+        // Most likely the filesystem refused the clone, no point trying it for every file
+        logger.warn("Reflink copy failed for {}, falling back to regular copies", srcFilePath);
+        this.enabled = false;
+        return false;
+    }
+}
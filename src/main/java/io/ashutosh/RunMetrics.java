@@ -0,0 +1,166 @@
+package io.ashutosh;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Timings and counts of one backup run, written to outputDir once the run is over
+    --------------------------------------
+    run-report.json:  everything below, for reading after a run
+    udev_backup.prom: the same as Prometheus metrics, for the node_exporter textfile collector
+
+    phases:    time spent in walk, compare, copy, verify, scrub, delete, browser_setup, login, upload, encode and notify.
+               Phases running on several workers at once (compare, copy, verify, upload) add up the time of every
+               worker, so they can be longer than the run itself
+    counters:  files_skipped, files_copied, bytes_copied, paths_failed, files_uploaded, bytes_uploaded ...
+    histogram: time taken to copy a single file, in the buckets of fileLatencyBucketsMillis
+
+    There is one current run, started by begin(), so the classes of a run don't need it handed to them.
+ */
+public class RunMetrics {
+
+    private static final Logger logger = LoggerFactory.getLogger(RunMetrics.class);
+
+    private static final long[] fileLatencyBucketsMillis = {1, 5, 10, 50, 100, 500, 1000, 5000, 30000};
+
+    private static volatile RunMetrics current = new RunMetrics();
+
+    // Measures a phase from its creation until close(), called in a finally block: a try-with-resources never
+    // referencing the phase trips -Xlint:try
+    public interface Phase extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final Instant startTime = Instant.now();
+    private final Map<String, LongAdder> phaseNanos = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final LongAdder[] fileLatencyBuckets = new LongAdder[fileLatencyBucketsMillis.length + 1];
+    private final LongAdder fileLatencyNanos = new LongAdder();
+
+    private RunMetrics() {
+        for (int idx = 0; idx < this.fileLatencyBuckets.length; idx++) this.fileLatencyBuckets[idx] = new LongAdder();
+    }
+
+    public static RunMetrics begin() {
+        current = new RunMetrics();
+        return current;
+    }
+
+    public static RunMetrics current() {
+        return current;
+    }
+
+    public Phase phase(String name) {
+        long start = System.nanoTime();
+        return () -> addPhaseTime(name, System.nanoTime() - start);
+    }
+
+    public void addPhaseTime(String name, long nanos) {
+        this.phaseNanos.computeIfAbsent(name, key -> new LongAdder()).add(nanos);
+    }
+
+    public void count(String name) {
+        count(name, 1);
+    }
+
+    public void count(String name, long delta) {
+        this.counters.computeIfAbsent(name, key -> new LongAdder()).add(delta);
+    }
+
+    public void observeFileLatency(long nanos) {
+        this.fileLatencyNanos.add(nanos);
+        long millis = nanos / 1_000_000;
+        int bucket = 0;
+        while (bucket < fileLatencyBucketsMillis.length && millis > fileLatencyBucketsMillis[bucket]) bucket++;
+        this.fileLatencyBuckets[bucket].increment();
+    }
+
+    private long counter(String name) {
+        LongAdder counter = this.counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    // Writes both reports, a failure only costs the reports
+    public void write(Path outputDir, int exitCode) {
+        double seconds = (System.nanoTime() - this.startNanos) / 1e9;
+        Map<String, Double> phases = new TreeMap<>();
+        this.phaseNanos.forEach((name, nanos) -> phases.put(name, nanos.sum() / 1e9));
+        Map<String, Long> counts = new TreeMap<>();
+        this.counters.forEach((name, counter) -> counts.put(name, counter.sum()));
+        double filesPerSecond = seconds > 0 ? counter("files_copied") / seconds : 0;
+        double bytesPerSecond = seconds > 0 ? counter("bytes_copied") / seconds : 0;
+
+        try {
+            Files.createDirectories(outputDir);
+
+            ObjectMapper objectMapper = new ObjectMapper();
+            ObjectNode report = objectMapper.createObjectNode();
+            report.put("start", this.startTime.toString());
+            report.put("durationSeconds", seconds);
+            report.put("exitCode", exitCode);
+            report.put("filesPerSecond", filesPerSecond);
+            report.put("bytesPerSecond", bytesPerSecond);
+            ObjectNode phasesNode = report.putObject("phaseSeconds");
+            phases.forEach(phasesNode::put);
+            ObjectNode countsNode = report.putObject("counters");
+            counts.forEach(countsNode::put);
+            ObjectNode histogram = report.putObject("fileLatencyMillis");
+            for (int idx = 0; idx < this.fileLatencyBuckets.length; idx++) {
+                String bucket = idx < fileLatencyBucketsMillis.length ? "le" + fileLatencyBucketsMillis[idx] : "inf";
+                histogram.put(bucket, this.fileLatencyBuckets[idx].sum());
+            }
+            writeAtomically(outputDir.resolve("run-report.json"), objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(report));
+
+            StringBuilder prom = new StringBuilder();
+            prom.append("# HELP udev_backup_last_run_timestamp_seconds Start of the last backup run\n");
+            prom.append("# TYPE udev_backup_last_run_timestamp_seconds gauge\n");
+            prom.append("udev_backup_last_run_timestamp_seconds ").append(this.startTime.getEpochSecond()).append("\n");
+            prom.append("# TYPE udev_backup_last_run_duration_seconds gauge\n");
+            prom.append("udev_backup_last_run_duration_seconds ").append(seconds).append("\n");
+            prom.append("# TYPE udev_backup_last_run_exit_code gauge\n");
+            prom.append("udev_backup_last_run_exit_code ").append(exitCode).append("\n");
+            prom.append("# TYPE udev_backup_phase_seconds gauge\n");
+            phases.forEach((name, value) -> prom.append("udev_backup_phase_seconds{phase=\"").append(name).append("\"} ").append(value).append("\n"));
+            prom.append("# TYPE udev_backup_count gauge\n");
+            counts.forEach((name, value) -> prom.append("udev_backup_count{name=\"").append(name).append("\"} ").append(value).append("\n"));
+            prom.append("# TYPE udev_backup_file_copy_seconds histogram\n");
+            long cumulative = 0;
+            for (int idx = 0; idx < this.fileLatencyBuckets.length; idx++) {
+                cumulative += this.fileLatencyBuckets[idx].sum();
+                String le = idx < fileLatencyBucketsMillis.length ? String.valueOf(fileLatencyBucketsMillis[idx] / 1000.0) : "+Inf";
+                prom.append("udev_backup_file_copy_seconds_bucket{le=\"").append(le).append("\"} ").append(cumulative).append("\n");
+            }
+            prom.append("udev_backup_file_copy_seconds_sum ").append(this.fileLatencyNanos.sum() / 1e9).append("\n");
+            prom.append("udev_backup_file_copy_seconds_count ").append(cumulative).append("\n");
+            writeAtomically(outputDir.resolve("udev_backup.prom"), prom.toString());
+
+            logger.info("Run took {} s: {} files ({} files/s, {} MB/s) copied, {} skipped, phases {}",
+                    String.format("%.1f", seconds), counter("files_copied"), String.format("%.1f", filesPerSecond),
+                    String.format("%.1f", bytesPerSecond / (1024 * 1024)), counter("files_skipped"), phases.keySet());
+        } catch (IOException e) {
+            logger.warn("Unable to write the run report to {}", outputDir, e);
+        }
+    }
+
+    // The textfile collector may read at any time, so it must never see a half written file
+    private static void writeAtomically(Path path, String content) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
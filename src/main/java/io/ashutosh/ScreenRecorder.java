@@ -0,0 +1,207 @@
+package io.ashutosh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Encodes the screencast of the browser while it is being recorded
+    --------------------------------------
+    ffmpeg is started with the recording and reads the frames as JPEG images from its stdin (image2pipe), so the
+    video is ready right after the last frame and no frame ever touches the disk.
+
+    The DevTools thread only queues the Base64 data of a frame, everything else happens on the recorder thread:
+        1. frames identical to the previous one are dropped before they are queued
+        2. frames arriving while the queue holds more than bufferBytes are dropped
+        3. the video runs at maxFps, each frame is shown from its timestamp until the next one, and of several
+           frames falling into the same video frame the latest wins, so the video plays back at real time
+        4. except that no frame is shown for more than maxHoldMillis, a page sitting idle (e.g. logged in while the
+           HDD backup still copies) is cut short instead of repeating the same frame for as long as it lasts
+ */
+public class ScreenRecorder {
+
+    private static final Logger logger = LoggerFactory.getLogger(ScreenRecorder.class);
+
+    private static class Frame {
+        final String data;
+        final long timestamp;
+
+        Frame(String data, long timestamp) {
+            this.data = data;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static final Frame end = new Frame("", 0L);
+    private static final long maxHoldMillis = 1000;
+
+    private final Path videoPath;
+    private final int maxFps;
+    private final long bufferBytes;
+
+    private final BlockingQueue<Frame> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private volatile boolean accepting = false;
+    private Thread worker;
+    private Process ffmpeg;
+    private OutputStream frames;
+
+    // Only touched by the DevTools thread
+    private String lastData;
+    private long receivedFrames = 0L;
+    private long identicalFrames = 0L;
+    private long overBudgetFrames = 0L;
+
+    // Only touched by the recorder thread
+    private long encodedFrames = 0L;
+
+    public ScreenRecorder(Path videoPath, int maxFps, long bufferBytes) {
+        this.videoPath = videoPath;
+        this.maxFps = maxFps;
+        this.bufferBytes = bufferBytes;
+    }
+
+    public synchronized void start() {
+        ProcessBuilder processBuilder = new ProcessBuilder(
+                "ffmpeg",
+                "-y",
+                "-loglevel", "quiet",
+                "-f", "image2pipe",
+                "-c:v", "mjpeg",
+                "-framerate", String.valueOf(this.maxFps),
+                "-i", "-",
+                "-c:v", "libx264",
+                "-vf", "pad=ceil(iw/2)*2:ceil(ih/2)*2",
+                "-pix_fmt", "yuv420p",
+                this.videoPath.toString());
+        processBuilder.redirectErrorStream(true);
+        processBuilder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        try {
+            Files.createDirectories(this.videoPath.toAbsolutePath().getParent());
+            this.ffmpeg = processBuilder.start();
+        } catch (IOException e) {
+            logger.error("Something went wrong while starting the process to encode the screen recording", e);
+            throw new RuntimeException(e);
+        }
+        this.frames = new BufferedOutputStream(this.ffmpeg.getOutputStream(), 1 << 20);
+
+        this.worker = new Thread(this::encodeFrames, "screen-recorder");
+        this.worker.setDaemon(true);
+        this.worker.start();
+        this.accepting = true;
+    }
+
+    // Called on the DevTools thread for every screencast frame, never blocks
+    public void offer(String data, long timestamp) {
+        if (!this.accepting) return;
+        this.receivedFrames++;
+        if (data.equals(this.lastData)) {
+            this.identicalFrames++;
+            return;
+        }
+        if (this.queuedBytes.get() + data.length() > this.bufferBytes) {
+            this.overBudgetFrames++;
+            return;
+        }
+        this.lastData = data;
+        this.queuedBytes.addAndGet(data.length());
+        this.queue.add(new Frame(data, timestamp));
+    }
+
+    private void encodeFrames() {
+        byte[] current = null;
+        long start = 0L;
+        long currentSlot = 0L;
+        long maxHoldSlots = Math.max(1, maxHoldMillis * this.maxFps / 1000);
+        try {
+            while (true) {
+                Frame frame = this.queue.take();
+                if (frame == end) break;
+                this.queuedBytes.addAndGet(-frame.data.length());
+                byte[] frameImage = Base64.getDecoder().decode(frame.data);
+
+                if (current == null) start = frame.timestamp;
+                long slot = Math.max((frame.timestamp - start) * this.maxFps / 1000, currentSlot);
+                if (current != null && slot - currentSlot > maxHoldSlots) {
+                    // Skips the idle stretch, the frames after it keep their spacing
+                    start += (slot - currentSlot - maxHoldSlots) * 1000 / this.maxFps;
+                    slot = currentSlot + maxHoldSlots;
+                }
+                // The previous frame stays on screen until this one arrived
+                if (current != null) {
+                    for (long i = currentSlot; i < slot; i++) writeFrame(current);
+                }
+                current = frameImage;
+                currentSlot = slot;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (current != null) writeFrame(current);
+    }
+
+    // A broken encoder only costs the video, the upload itself carries on
+    private void writeFrame(byte[] frameImage) {
+        if (this.frames == null) return;
+        try {
+            this.frames.write(frameImage);
+            this.encodedFrames++;
+        } catch (IOException e) {
+            logger.error("Encoder stopped accepting frames, the rest of the upload is not recorded", e);
+            this.frames = null;
+        }
+    }
+
+    // Ends the stream and waits for ffmpeg to write out the video, returns true if it succeeded
+    public synchronized boolean finish() {
+        if (this.ffmpeg == null) return false;
+        this.accepting = false;
+        try {
+            this.queue.add(end);
+            this.worker.join(TimeUnit.MINUTES.toMillis(1));
+            if (this.worker.isAlive()) {
+                // Killing the encoder also frees a recorder thread stuck writing into the pipe
+                logger.error("Screen recorder did not drain its queue in time, killing the encoder");
+                this.ffmpeg.destroyForcibly();
+                this.worker.interrupt();
+                this.worker.join();
+            }
+            if (this.frames != null) this.frames.close();
+        } catch (IOException e) {
+            logger.warn("Unable to flush the last frames to the encoder", e);
+        } catch (InterruptedException e) {
+            logger.error("Something went wrong while waiting for the screen recorder to finish", e);
+            this.ffmpeg.destroyForcibly();
+            this.ffmpeg = null;
+            throw new RuntimeException(e);
+        }
+        this.frames = null;
+        logger.info("Screen recording: {} frames received, {} identical and {} over the buffer budget dropped, {} video frames encoded",
+                this.receivedFrames, this.identicalFrames, this.overBudgetFrames, this.encodedFrames);
+        try {
+            if (!this.ffmpeg.waitFor(2, TimeUnit.MINUTES)) {
+                logger.error("Encoder did not finish in time, killing it");
+                this.ffmpeg.destroyForcibly();
+                return false;
+            }
+            logger.info("Encoded screen recording into {}", this.videoPath);
+            return this.ffmpeg.exitValue() == 0;
+        } catch (InterruptedException e) {
+            logger.error("Something went wrong while waiting for the video encoding to complete", e);
+            this.ffmpeg.destroyForcibly();
+            throw new RuntimeException(e);
+        } finally {
+            this.ffmpeg = null;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package io.ashutosh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.IsoFields;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/*
+    Dated generations of the assets kept at destPath/snapshots/<yyyy-MM-dd_HH-mm-ss>
+    --------------------------------------
+    A run writes into <name>.inprogress, files that did not change since the previous generation are hard links
+    into it, so only changed files take space. The directory is renamed once the run is over and "latest" points
+    to it. Old generations are thinned out to one per hour, day and week, deleting a generation only removes links.
+
+    A run that failed for some asset renames its directory to <name>.incomplete instead. It is never linked to nor
+    counted for retention, and goes away once a later generation completes, like the <name>.inprogress directory
+    of a run that was interrupted.
+ */
+public class SnapshotManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotManager.class);
+
+    private static final DateTimeFormatter nameFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
+    private static final String inProgressSuffix = ".inprogress";
+    private static final String incompleteSuffix = ".incomplete";
+
+    private final Path snapshotsDir;
+    private final int retainHourly;
+    private final int retainDaily;
+    private final int retainWeekly;
+
+    private String currentName;
+    private Path current;
+    private Path previous;
+
+    public SnapshotManager(Path destBasePath, int retainHourly, int retainDaily, int retainWeekly) {
+        this.snapshotsDir = destBasePath.resolve("snapshots");
+        this.retainHourly = retainHourly;
+        this.retainDaily = retainDaily;
+        this.retainWeekly = retainWeekly;
+    }
+
+    // Completed generations sorted from oldest to newest
+    private TreeMap<LocalDateTime, Path> generations() throws IOException {
+        TreeMap<LocalDateTime, Path> generations = new TreeMap<>();
+        if (!Files.isDirectory(this.snapshotsDir)) return generations;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(this.snapshotsDir)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (!Files.isDirectory(entry) || Files.isSymbolicLink(entry)) continue;
+                try {
+                    generations.put(LocalDateTime.parse(name, nameFormat), entry);
+                } catch (DateTimeParseException e) {
+                    // .inprogress leftovers of interrupted runs and anything else that is not a generation
+                }
+            }
+        }
+        return generations;
+    }
+
+    // Creates the directory of the new generation and returns it
+    public Path begin() throws IOException {
+        Files.createDirectories(this.snapshotsDir);
+        TreeMap<LocalDateTime, Path> generations = generations();
+        this.previous = generations.isEmpty() ? null : generations.lastEntry().getValue();
+
+        this.currentName = LocalDateTime.now().format(nameFormat);
+        this.current = this.snapshotsDir.resolve(this.currentName + inProgressSuffix);
+        Files.createDirectories(this.current);
+        logger.info("Writing generation {}, previous generation: {}", this.currentName, this.previous);
+        return this.current;
+    }
+
+    // Newest completed generation, null if there is none yet
+    public Path latest() throws IOException {
+        TreeMap<LocalDateTime, Path> generations = generations();
+        return generations.isEmpty() ? null : generations.lastEntry().getValue();
+    }
+
+    // Generation the current one is compared against and linked to, null for the first one
+    public Path previous() {
+        return this.previous;
+    }
+
+    // Hard links the unchanged file of the previous generation into the current one
+    public void link(String fileName) throws IOException {
+        Path target = this.current.resolve(fileName);
+        try {
+            Files.createLink(target, this.previous.resolve(fileName));
+        } catch (UnsupportedOperationException e) {
+            throw new IOException("Snapshot mode needs a filesystem with hard links on destPath", e);
+        }
+    }
+
+    public void commit() throws IOException {
+        Path completed = this.snapshotsDir.resolve(this.currentName);
+        Files.move(this.current, completed, StandardCopyOption.ATOMIC_MOVE);
+        this.current = completed;
+
+        Path latest = this.snapshotsDir.resolve("latest");
+        Path latestTmp = this.snapshotsDir.resolve("latest.tmp");
+        Files.deleteIfExists(latestTmp);
+        Files.createSymbolicLink(latestTmp, completed.getFileName());
+        Files.move(latestTmp, latest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("Generation {} completed", this.currentName);
+
+        prune();
+    }
+
+    // Keeps what the run copied for a look by hand, without making it the latest generation
+    public void abandon() throws IOException {
+        Path incomplete = this.snapshotsDir.resolve(this.currentName + incompleteSuffix);
+        Files.move(this.current, incomplete, StandardCopyOption.ATOMIC_MOVE);
+        this.current = incomplete;
+        logger.warn("Generation {} is incomplete, latest stays at {}", this.currentName, this.previous);
+    }
+
+    // Keeps the newest generation of each of the last retainHourly hours, retainDaily days and retainWeekly weeks
+    private void prune() throws IOException {
+        TreeMap<LocalDateTime, Path> generations = generations();
+        if (generations.isEmpty()) return;
+        LocalDateTime newest = generations.lastKey();
+
+        Set<LocalDateTime> keep = new HashSet<>();
+        keep.add(newest);
+        Set<String> hours = new HashSet<>();
+        Set<String> days = new HashSet<>();
+        Set<String> weeks = new HashSet<>();
+        for (LocalDateTime time : generations.descendingKeySet()) {
+            if (ChronoUnit.HOURS.between(time, newest) < this.retainHourly
+                    && hours.add(time.truncatedTo(ChronoUnit.HOURS).toString())) keep.add(time);
+            if (ChronoUnit.DAYS.between(time, newest) < this.retainDaily
+                    && days.add(time.toLocalDate().toString())) keep.add(time);
+            if (ChronoUnit.WEEKS.between(time, newest) < this.retainWeekly
+                    && weeks.add(time.get(IsoFields.WEEK_BASED_YEAR) + "-" + time.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR))) keep.add(time);
+        }
+
+        List<Path> expired = new ArrayList<>();
+        generations.forEach((time, path) -> {
+            if (!keep.contains(time)) expired.add(path);
+        });
+        // Incomplete generations older than the one just completed have served their purpose, and so have the
+        // .inprogress ones of runs that were killed or lost their disk
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(this.snapshotsDir, "*{" + incompleteSuffix + "," + inProgressSuffix + "}")) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)
+                        && name.substring(0, name.lastIndexOf('.')).compareTo(this.currentName) < 0) expired.add(entry);
+            }
+        }
+        for (Path generation : expired) {
+            deleteTree(generation);
+            logger.info("Pruned generation {}", generation.getFileName());
+        }
+    }
+
+    // Deletes a file, or a folder with everything below it
+    static void deleteTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) throw e;
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
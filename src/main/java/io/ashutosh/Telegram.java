@@ -1,42 +1,63 @@
 package io.ashutosh;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.config.RequestConfig;
 import org.apache.hc.client5.http.entity.mime.MultipartEntityBuilder;
-import org.apache.hc.client5.http.impl.classic.BasicHttpClientResponseHandler;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.HttpClients;
 import org.apache.hc.core5.http.ContentType;
 import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.apache.hc.core5.util.Timeout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
-public class Telegram {
+public class Telegram implements AutoCloseable {
 
     static final Logger logger = LoggerFactory.getLogger(Telegram.class);
 
+    // Telegram rejects messages longer than 4096 characters, some room is left for the "(1/3)" part markers
+    static final int maxMessageLength = 4000;
+    private static final int maxAttempts = 4;
+
     final String urlString;
     final String telegramReceiverID;
     final ObjectMapper objectMapper;
+    // One client for every update, so connections are reused
+    private final CloseableHttpClient client;
+
+    private static class Reply {
+        final int status;
+        final String body;
+
+        Reply(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
 
     public Telegram(String telegramReceiverID, String token) {
         this.urlString = String.format("https://api.telegram.org/bot%s", token);
         this.telegramReceiverID = telegramReceiverID;
         this.objectMapper = new ObjectMapper();
+        this.client = HttpClients.custom()
+                .setDefaultRequestConfig(RequestConfig.custom().setResponseTimeout(Timeout.ofMinutes(2)).build())
+                .build();
     }
 
     private boolean checkForSuccessfulRequest(String response) {
@@ -48,7 +69,104 @@ public class Telegram {
         }
     }
 
+    // Sends the request built by newRequest, again with backoff on connection errors, 429 and 5xx responses.
+    // Returns the last response body, or null if no response was received at all
+    private String execute(Supplier<HttpPost> newRequest) throws InterruptedException {
+        long backoffMillis = 1000;
+        String body = null;
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            int status;
+            try {
+                Reply reply = this.client.execute(newRequest.get(), httpResponse -> new Reply(httpResponse.getCode(),
+                        httpResponse.getEntity() == null ? "" : EntityUtils.toString(httpResponse.getEntity())));
+                status = reply.status;
+                body = reply.body;
+            } catch (IOException e) {
+                logger.warn("Telegram request failed, attempt {} of {}", attempt, maxAttempts, e);
+                status = -1;
+            }
+            if (status != 429 && status < 500 && status != -1) return body;
+
+            long waitMillis = backoffMillis;
+            if (status == 429) {
+                // Telegram tells how long to wait when it rate limits
+                try {
+                    JsonNode retryAfter = this.objectMapper.readTree(body).path("parameters").path("retry_after");
+                    if (retryAfter.isNumber()) waitMillis = retryAfter.asLong() * 1000;
+                } catch (JsonProcessingException e) {
+                    logger.debug("Unable to read retry_after of a rate limited request", e);
+                }
+            }
+            if (attempt < maxAttempts) {
+                logger.info("Retrying Telegram request in {} ms (status {})", waitMillis, status);
+                Thread.sleep(waitMillis);
+            }
+            backoffMillis *= 2;
+        }
+        return body;
+    }
+
+    // Splits at line ends, every line of the messages built here opens and closes its own tags
+    static List<String> splitMessage(String message) {
+        List<String> parts = new ArrayList<>();
+        StringBuilder part = new StringBuilder();
+        for (String line : message.split("\n", -1)) {
+            if (line.length() > maxMessageLength - 1) line = truncateLine(line, maxMessageLength - 1);
+            if (part.length() + line.length() + 1 > maxMessageLength) {
+                parts.add(part.toString());
+                part.setLength(0);
+            }
+            part.append(line).append("\n");
+        }
+        if (!part.toString().isBlank()) parts.add(part.toString());
+        return parts;
+    }
+
+    // Cuts an HTML line down to limit characters between tags and entities, never inside one, and closes the tags
+    // still open at the cut. Telegram rejects a message with broken markup as a whole
+    static String truncateLine(String line, int limit) {
+        StringBuilder truncated = new StringBuilder();
+        List<String> openTags = new ArrayList<>();
+        int closingLength = 0;
+        int idx = 0;
+        while (idx < line.length()) {
+            char first = line.charAt(idx);
+            int end = first == '<' ? line.indexOf('>', idx) + 1
+                    : first == '&' ? line.indexOf(';', idx) + 1
+                    : idx + Character.charCount(line.codePointAt(idx));
+            if (end <= idx) end = idx + 1;
+            String token = line.substring(idx, end);
+
+            int tagClosingLength = 0;
+            String tagName = null;
+            if (token.startsWith("</")) tagClosingLength = openTags.isEmpty() ? 0 : -token.length();
+            else if (first == '<' && token.endsWith(">")) {
+                tagName = token.substring(1, token.length() - 1).split("[\\s>]", 2)[0];
+                tagClosingLength = tagName.length() + 3;
+            }
+            if (truncated.length() + token.length() + 1 + closingLength + tagClosingLength > limit) break;
+
+            truncated.append(token);
+            closingLength += tagClosingLength;
+            if (token.startsWith("</")) {
+                if (!openTags.isEmpty()) openTags.remove(openTags.size() - 1);
+            } else if (tagName != null) openTags.add(tagName);
+            idx = end;
+        }
+        truncated.append('…');
+        for (int tag = openTags.size() - 1; tag >= 0; tag--) truncated.append("</").append(openTags.get(tag)).append('>');
+        return truncated.toString();
+    }
+
     public void sendMessageUpdate(String message) {
+        List<String> parts = splitMessage(message);
+        for (int idx = 0; idx < parts.size(); idx++) {
+            String text = parts.size() == 1 ? parts.get(idx) : parts.get(idx) + "<i>(" + (idx + 1) + "/" + parts.size() + ")</i>";
+            if (!sendMessage(text)) return;
+        }
+    }
+
+    private boolean sendMessage(String message) {
         try {
             String methodName = "/sendMessage";
 
@@ -58,53 +176,93 @@ public class Telegram {
             jsonBody.put("protect_content", Boolean.toString(true));
             jsonBody.put("text", message);
 
-            String requestBody = this.objectMapper
-                    .writerWithDefaultPrettyPrinter()
-                    .writeValueAsString(jsonBody);
-
-            HttpRequest request = HttpRequest.newBuilder(URI.create(this.urlString + methodName))
-                    .header("Content-Type", "application/json")
-                    .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                    .build();
+            String requestBody = this.objectMapper.writeValueAsString(jsonBody);
 
-            HttpResponse<String> response = HttpClient.newBuilder()
-                    .build()
-                    .send(request, HttpResponse.BodyHandlers.ofString());
+            String response = execute(() -> {
+                HttpPost httpPost = new HttpPost(this.urlString + methodName);
+                httpPost.setEntity(new StringEntity(requestBody, ContentType.APPLICATION_JSON));
+                return httpPost;
+            });
 
-            if (checkForSuccessfulRequest(response.body()))
+            if (response != null && checkForSuccessfulRequest(response)) {
                 logger.info("Message update related to backup has been sent");
-            else
-                logger.error("Unsuccessful Telegram Request. Response received: {}", response.body());
-        } catch (IOException | InterruptedException e) {
-            logger.error("Something went wrong while sending message update! Unable to send HTTP POST request.", e);
+                return true;
+            }
+            logger.error("Unsuccessful Telegram Request. Response received: {}", response);
+        } catch (JsonProcessingException e) {
+            logger.error("Something went wrong while sending message update! Unable to build the request.", e);
+        } catch (InterruptedException e) {
+            logger.error("Something went wrong while sending message update! Interrupted while retrying.", e);
+            Thread.currentThread().interrupt();
         }
+        return false;
     }
 
     public void sendVideoUpdate(String outputDir, String videoFileName) {
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
+        try {
             String methodName = "/sendVideo";
 
-            InputStream inputStream = new FileInputStream(Paths.get(outputDir).toAbsolutePath().resolve(videoFileName).toString());
-            HttpEntity entity = MultipartEntityBuilder.create()
-                    .addTextBody("chat_id", this.telegramReceiverID)
-                    .addTextBody("caption", "Video Recording of pCloud backup: <b>" +
-                            LocalDateTime.now().format(DateTimeFormatter.ofPattern("E, d LLL YYYY HH:mm:ss")) + "</b>")
-                    .addTextBody("parse_mode", "HTML")
-                    .addTextBody("show_caption_above_media", Boolean.toString(true))
-                    .addTextBody("protect_content", Boolean.toString(true))
-                    .addBinaryBody("video", inputStream, ContentType.create("video/mp4"), videoFileName)
-                    .build();
-
-            HttpPost httpPost = new HttpPost(this.urlString + methodName);
-            httpPost.setEntity(entity);
-
-            String response = client.execute(httpPost, new BasicHttpClientResponseHandler());
-            if (checkForSuccessfulRequest(response))
+            Path videoPath = Paths.get(outputDir).toAbsolutePath().resolve(videoFileName);
+            String caption = "Video Recording of pCloud backup: <b>" +
+                    LocalDateTime.now().format(DateTimeFormatter.ofPattern("E, d LLL YYYY HH:mm:ss")) + "</b>";
+
+            String response = execute(() -> {
+                HttpEntity entity = MultipartEntityBuilder.create()
+                        .addTextBody("chat_id", this.telegramReceiverID)
+                        .addTextBody("caption", caption)
+                        .addTextBody("parse_mode", "HTML")
+                        .addTextBody("show_caption_above_media", Boolean.toString(true))
+                        .addTextBody("protect_content", Boolean.toString(true))
+                        .addBinaryBody("video", videoPath.toFile(), ContentType.create("video/mp4"), videoFileName)
+                        .build();
+                HttpPost httpPost = new HttpPost(this.urlString + methodName);
+                httpPost.setEntity(entity);
+                return httpPost;
+            });
+
+            if (response != null && checkForSuccessfulRequest(response))
                 logger.info("Video recording of pCloud backup has been sent");
             else
                 logger.error("Unsuccessful Telegram Request while sending video of pCloud backup! Response Received: {}", response);
+        } catch (InterruptedException e) {
+            logger.error("Something went wrong while sending video update! Interrupted while retrying.", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void sendDocumentUpdate(Path documentPath, String fileName, String caption) {
+        try {
+            String methodName = "/sendDocument";
+
+            String response = execute(() -> {
+                HttpEntity entity = MultipartEntityBuilder.create()
+                        .addTextBody("chat_id", this.telegramReceiverID)
+                        .addTextBody("caption", caption)
+                        .addTextBody("parse_mode", "HTML")
+                        .addTextBody("protect_content", Boolean.toString(true))
+                        .addBinaryBody("document", documentPath.toFile(), ContentType.APPLICATION_OCTET_STREAM, fileName)
+                        .build();
+                HttpPost httpPost = new HttpPost(this.urlString + methodName);
+                httpPost.setEntity(entity);
+                return httpPost;
+            });
+
+            if (response != null && checkForSuccessfulRequest(response))
+                logger.info("Document {} has been sent", fileName);
+            else
+                logger.error("Unsuccessful Telegram Request while sending document {}! Response Received: {}", fileName, response);
+        } catch (InterruptedException e) {
+            logger.error("Something went wrong while sending document update! Interrupted while retrying.", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.client.close();
         } catch (IOException e) {
-            logger.error("Something went wrong while sending video update! Unable to send HTTP POST request.", e);
+            logger.warn("Unable to close Telegram client", e);
         }
     }
 }
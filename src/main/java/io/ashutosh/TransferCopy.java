@@ -0,0 +1,41 @@
+package io.ashutosh;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Lets the kernel move the data (sendfile/copy_file_range) without it passing through the heap
+public class TransferCopy implements CopyStrategy {
+
+    private final long chunkSize;
+    private final IoThrottle throttle;
+
+    public TransferCopy(long chunkSize, IoThrottle throttle) {
+        this.chunkSize = chunkSize;
+        this.throttle = throttle;
+    }
+
+    @Override
+    public String name() {
+        return "transfer";
+    }
+
+    @Override
+    public boolean copy(Path srcFilePath, Path destFilePath, FileInfo fileInfo) throws IOException {
+        try (FileChannel src = FileChannel.open(srcFilePath, StandardOpenOption.READ);
+             FileChannel dest = FileChannel.open(destFilePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = src.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = src.transferTo(position, Math.min(this.chunkSize, size - position), dest);
+                // Nothing moved at the very start means the channels do not support it, let the next strategy copy
+                if (transferred <= 0 && position == 0) return false;
+                if (transferred <= 0) throw new IOException("Transfer stalled at " + position + " of " + size + " bytes: " + srcFilePath);
+                position += transferred;
+                if (this.throttle != null) this.throttle.acquire(transferred);
+            }
+            return true;
+        }
+    }
+}
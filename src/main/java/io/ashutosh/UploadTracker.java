@@ -0,0 +1,238 @@
+package io.ashutosh;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openqa.selenium.devtools.DevTools;
+import org.openqa.selenium.devtools.v128.network.Network;
+import org.openqa.selenium.devtools.v128.network.model.Headers;
+import org.openqa.selenium.devtools.v128.network.model.PostDataEntry;
+import org.openqa.selenium.devtools.v128.network.model.Request;
+import org.openqa.selenium.devtools.v128.network.model.RequestId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+    Follows the uploads of the pCloud web interface through DevTools Network events
+    --------------------------------------
+    Every POST to an upload method of the pCloud API (uploadfile, upload_write, upload_save) is tracked from
+    requestWillBeSent to loadingFinished or loadingFailed:
+        - the size of finished request bodies adds up to the bytes uploaded. Chrome leaves Content-Length out of the
+          headers of requestWillBeSent, it is taken from the headers actually sent (requestWillBeSentExtraInfo) or
+          else from the post data
+        - the JSON response tells which files were stored (result 0 and their metadata) or why not (error)
+    The upload is complete once every expected file has been stored or failed and no upload request is in flight.
+ */
+public class UploadTracker {
+
+    private static final Logger logger = LoggerFactory.getLogger(UploadTracker.class);
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final DevTools devTools;
+    // Responses are read on a thread of their own, the DevTools thread only records the events
+    private final ExecutorService responses = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "upload-tracker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, Request> inFlight = new ConcurrentHashMap<>();
+    // Content-Length of the headers Chrome sent, arrives before or after requestWillBeSent
+    private final Map<String, Long> sentLengths = new ConcurrentHashMap<>();
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+    private long expectedFiles = 0L;
+    private long expectedBytes = 0L;
+    private long storedFiles = 0L;
+    private long uploadedBytes = 0L;
+    private long seenRequests = 0L;
+    private int loggedPercent = 0;
+
+    public UploadTracker(DevTools devTools) {
+        this.devTools = devTools;
+    }
+
+    public void start() {
+        this.devTools.send(Network.enable(Optional.empty(), Optional.empty(), Optional.empty()));
+
+        this.devTools.addListener(Network.requestWillBeSent(), event -> {
+            Request request = event.getRequest();
+            if (!isUpload(request)) return;
+            this.inFlight.put(event.getRequestId().toJson(), request);
+            synchronized (this) {
+                this.seenRequests++;
+            }
+        });
+        this.devTools.addListener(Network.requestWillBeSentExtraInfo(), event -> {
+            long length = contentLength(event.getHeaders());
+            if (length >= 0) this.sentLengths.put(event.getRequestId().toJson(), length);
+        });
+        this.devTools.addListener(Network.loadingFinished(), event -> {
+            Request request = this.inFlight.get(event.getRequestId().toJson());
+            if (request != null) this.responses.execute(() -> finished(event.getRequestId(), request));
+        });
+        this.devTools.addListener(Network.loadingFailed(), event -> {
+            Request request = this.inFlight.remove(event.getRequestId().toJson());
+            this.sentLengths.remove(event.getRequestId().toJson());
+            if (request == null) return;
+            fail(request, event.getErrorText());
+        });
+    }
+
+    // Files handed to the web interface, added up over every file input they were sent to
+    public synchronized void expect(long files, long bytes) {
+        this.expectedFiles += files;
+        this.expectedBytes += bytes;
+        notifyAll();
+    }
+
+    private static boolean isUpload(Request request) {
+        if (!request.getMethod().equals("POST") || !request.getUrl().contains("upload")) return false;
+        try {
+            URI uri = URI.create(request.getUrl());
+            String path = uri.getPath() == null ? "" : uri.getPath();
+            return uri.getHost() != null && uri.getHost().contains("pcloud")
+                    && (path.endsWith("/uploadfile") || path.endsWith("/upload_write") || path.endsWith("/upload_save"));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private void finished(RequestId requestId, Request request) {
+        JsonNode response;
+        try {
+            Network.GetResponseBodyResponse body = this.devTools.send(Network.getResponseBody(requestId));
+            String text = body.getBase64Encoded()
+                    ? new String(Base64.getDecoder().decode(body.getBody()), StandardCharsets.UTF_8) : body.getBody();
+            response = objectMapper.readTree(text);
+        } catch (Exception e) {
+            // Without the body the request still counts towards the bytes, just not towards the files
+            logger.warn("Unable to read the response of {}", request.getUrl(), e);
+            response = null;
+        }
+
+        synchronized (this) {
+            this.inFlight.remove(requestId.toJson());
+            Long sentLength = this.sentLengths.remove(requestId.toJson());
+            if (response != null && response.path("result").asInt(-1) != 0) {
+                fail(request, response.path("error").asText("result " + response.path("result").asText()));
+                return;
+            }
+            // uploadfile returns the stored files as an array, upload_save the one file it stored, upload_write nothing
+            long stored = 0;
+            if (response != null && response.path("metadata").isArray()) stored = response.path("metadata").size();
+            else if (response != null && response.path("metadata").isObject()) stored = 1;
+
+            this.uploadedBytes += sentLength != null ? sentLength : bodyLength(request);
+            this.storedFiles += stored;
+            logProgress();
+            notifyAll();
+        }
+    }
+
+    private synchronized void fail(Request request, String reason) {
+        String fileName = queryParameter(request.getUrl(), "filename");
+        if (fileName == null) fileName = queryParameter(request.getUrl(), "name");
+        String failure = (fileName == null ? request.getUrl() : fileName) + ": " + reason;
+        logger.error("Upload failed: {}", failure);
+        this.failures.add(failure);
+        notifyAll();
+    }
+
+    // -1 if the headers hold no usable Content-Length
+    private static long contentLength(Headers headers) {
+        for (Map.Entry<String, Object> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase("Content-Length")) {
+                try {
+                    return Long.parseLong(String.valueOf(header.getValue()).trim());
+                } catch (NumberFormatException e) {
+                    return -1L;
+                }
+            }
+        }
+        return -1L;
+    }
+
+    // Size of the body when Chrome did not report the headers it sent, 0 if it kept the post data to itself
+    private static long bodyLength(Request request) {
+        long length = contentLength(request.getHeaders());
+        if (length >= 0) return length;
+        if (request.getPostDataEntries().isPresent()) {
+            length = 0L;
+            for (PostDataEntry entry : request.getPostDataEntries().get())
+                length += entry.getBytes().map(bytes -> (long) Base64.getDecoder().decode(bytes).length).orElse(0L);
+            return length;
+        }
+        return request.getPostData().map(data -> (long) data.getBytes(StandardCharsets.UTF_8).length).orElse(0L);
+    }
+
+    private static String queryParameter(String url, String name) {
+        String query = URI.create(url).getRawQuery();
+        if (query == null) return null;
+        for (String parameter : query.split("&")) {
+            int idx = parameter.indexOf('=');
+            if (idx > 0 && parameter.substring(0, idx).equals(name))
+                return URLDecoder.decode(parameter.substring(idx + 1), StandardCharsets.UTF_8);
+        }
+        return null;
+    }
+
+    private void logProgress() {
+        int percent = this.expectedBytes == 0 ? 100 : (int) Math.min(100, this.uploadedBytes * 100 / this.expectedBytes);
+        if (percent / 10 > this.loggedPercent / 10 || this.storedFiles == this.expectedFiles) {
+            logger.info("Uploaded {} of {} files, {}% of {} bytes", this.storedFiles, this.expectedFiles, percent, this.expectedBytes);
+            this.loggedPercent = percent;
+        }
+    }
+
+    private boolean settled() {
+        return this.storedFiles + this.failures.size() >= this.expectedFiles && this.inFlight.isEmpty();
+    }
+
+    // Waits until every expected file was stored or failed, returns false if that did not happen within timeout or if
+    // no upload request showed up within idleTimeout, which means the web interface uploads some other way
+    public synchronized boolean await(Duration timeout, Duration idleTimeout) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long deadline = start + timeout.toMillis();
+        while (!settled()) {
+            long now = System.currentTimeMillis();
+            if (now >= deadline) return false;
+            if (this.seenRequests == 0 && now - start >= idleTimeout.toMillis()) {
+                logger.warn("No upload requests seen within {} s", idleTimeout.getSeconds());
+                return false;
+            }
+            wait(Math.min(deadline - now, 1000));
+        }
+        return true;
+    }
+
+    public synchronized boolean sawUploads() {
+        return this.seenRequests > 0;
+    }
+
+    public List<String> getFailures() {
+        return this.failures;
+    }
+
+    public void stop() {
+        this.responses.shutdown();
+        try {
+            this.devTools.send(Network.disable());
+        } catch (Exception e) {
+            logger.info("Network domain might be already disabled");
+        }
+    }
+}
@@ -4,9 +4,6 @@ import org.openqa.selenium.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
@@ -15,7 +12,6 @@ import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.function.BiPredicate;
 import java.util.stream.IntStream;
-import java.util.stream.LongStream;
 
 public class Utils {
     private static final Logger logger = LoggerFactory.getLogger(Utils.class);
@@ -54,42 +50,12 @@ public class Utils {
         };
     }
 
-    public static boolean generateVideoFromFrames(String frameNamePrefix, String tmpDir, String outputDir, String videoFileName) {
-        ProcessBuilder processBuilder = new ProcessBuilder(
-                "ffmpeg",
-                "-y",
-                "-loglevel", "quiet",
-                "-framerate", "30",
-                "-i", tmpDir + "/" + frameNamePrefix + "%d.png",
-                "-c:v", "libx264",
-                "-vf", "pad=ceil(iw/2)*2:ceil(ih/2)*2",
-                "-pix_fmt", "yuv420p",
-                outputDir + "/" + videoFileName);
-        processBuilder.redirectErrorStream(true);
-        try {
-            Process process = processBuilder.start();
-            return process.waitFor() == 0;
-        } catch (IOException e) {
-            logger.error("Something went wrong while starting the process to generate video from frames", e);
-            throw new RuntimeException(e);
-        } catch (InterruptedException e) {
-            logger.error("Something went wrong while waiting for the video generation process to complete", e);
-            throw new RuntimeException(e);
-        }
-    }
-
-    public static void deleteFrames(String frameNamePrefix, String tmpDir, Long maxFrameCount) {
-        LongStream.range(0, maxFrameCount).forEach(frameNum -> {
-            try {
-                Files.deleteIfExists(Paths.get(tmpDir).toAbsolutePath().resolve(frameNamePrefix + frameNum + ".png"));
-            } catch (IOException e) {
-                logger.error("Enable to delete frames", e);
-                throw new RuntimeException(e);
-            }
-        });
+    // File names end up in messages sent with parse_mode HTML, where a stray < or & makes Telegram reject the message
+    public static String escapeHtml(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
     }
 
-    public static String messageTextBuilder(List<String> copiedFiles, List<String> failedPaths, boolean isFailed) {
+    public static String messageTextBuilder(List<String> copiedFiles, List<String> failedPaths, boolean isFailed, BackupReport report) {
         StringBuilder text = new StringBuilder();
 
         if (isFailed) text.append("<b>Backup Failed</b> ❌\n");
@@ -99,16 +65,20 @@ public class Utils {
         // For failed:
         //          1. List of files copied if present or nothing
         //          2. Failed Paths
+        // Long lists of copied files are replaced by the summary of the report, the list itself is attached
         // For partial successful:
         //          1. List of files copied if present or all files are up to date
         //          2. Failed Paths
         // For successful:
         //          1. List of files copied if present or all files are up to date
 
-        if (!copiedFiles.isEmpty()) {
+        if (copiedFiles.size() > BackupReport.listLimit) {
+            text.append(report.summary());
+            text.append("<i>The full list of files is attached</i>\n");
+        } else if (!copiedFiles.isEmpty()) {
             text.append("\n");
             text.append("<b><i>List of files that were backed up in Hard Disk:</i></b>\n");
-            IntStream.range(0, copiedFiles.size()).forEach(idx -> text.append(idx + 1).append(". ").append(copiedFiles.get(idx)).append("\n"));
+            IntStream.range(0, copiedFiles.size()).forEach(idx -> text.append(idx + 1).append(". ").append(escapeHtml(copiedFiles.get(idx))).append("\n"));
         }
 
         if (copiedFiles.isEmpty() && !isFailed) {
@@ -119,9 +89,19 @@ public class Utils {
         if (!failedPaths.isEmpty()) {
             text.append("\n");
             text.append("<b><i>List of paths that require attention:</i></b>\n");
-            IntStream.range(0, failedPaths.size()).forEach(idx -> text.append(idx + 1).append(". ").append(failedPaths.get(idx)).append("\n"));
+            IntStream.range(0, failedPaths.size()).forEach(idx -> text.append(idx + 1).append(". ").append(escapeHtml(failedPaths.get(idx))).append("\n"));
         }
         return text.toString();
     }
 
+    public static String scrubTextBuilder(List<String> corruptedFiles, boolean repairable) {
+        StringBuilder text = new StringBuilder();
+        text.append("\n");
+        text.append("<b><i>Files whose backup failed the checksum scrub (bit-rot):</i></b>\n");
+        IntStream.range(0, corruptedFiles.size()).forEach(idx -> text.append(idx + 1).append(". ").append(escapeHtml(corruptedFiles.get(idx))).append("\n"));
+        if (repairable) text.append("<i>These files were queued to be copied again from the source</i>\n");
+        else text.append("<i>The repository cannot repair these files, check the backup disk</i>\n");
+        return text.toString();
+    }
+
 }
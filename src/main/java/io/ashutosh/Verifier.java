@@ -0,0 +1,250 @@
+package io.ashutosh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32C;
+
+/*
+    Checks copies against their source and scrubs the backup for bit-rot
+    --------------------------------------
+    verify: right after a file is written, its CRC32C on destPath is compared with the one of the source,
+            the checksum is then kept in the HashCache. The copy is still in the page cache at that point, so this
+            catches copy bugs but not a disk that failed to store the data
+    scrub:  on every run the files verified by the previous run are read back from destPath first, now from the
+            disk itself, then the next slice of the cached files within a time budget, continuing where the
+            previous run stopped, so the whole backup is covered over a few plug-ins
+
+    fresh:  count(int) then count * [path(UTF)], the files verified but not scrubbed yet
+ */
+public class Verifier {
+
+    private static final Logger logger = LoggerFactory.getLogger(Verifier.class);
+
+    private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(1024 * 1024));
+
+    // Where the backed up content of a file is read from, depends on the store mode
+    public interface Target {
+        // true if the backup still holds the file with this size and last modified time
+        boolean holds(String fileName, long size, long lastModified) throws IOException;
+
+        int checksum(String fileName) throws IOException;
+    }
+
+    private final HashCache hashCache;
+    private final Path cursorPath;
+    private final Path freshPath;
+    // Verified by this run, or left over from the previous one when the scrub ran out of time
+    private final Set<String> fresh = ConcurrentHashMap.newKeySet();
+    private boolean freshRead = false;
+
+    public Verifier(HashCache hashCache, Path cursorPath, Path freshPath) {
+        this.hashCache = hashCache;
+        this.cursorPath = cursorPath;
+        this.freshPath = freshPath;
+    }
+
+    public static int checksum(Path path) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = buffers.get();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer.clear();
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    // Throws if the backed up content differs from the source, the source hash is taken from the cache when possible
+    // Returns false if the source was modified while it was copied, the copy is then left for the next run
+    public boolean verify(FileInfo fileInfo, Path srcFilePath, Target target) throws IOException {
+        Integer srcCrc = this.hashCache.lookup(fileInfo.fileName, fileInfo.size, fileInfo.lastModified);
+        if (srcCrc == null) srcCrc = checksum(srcFilePath);
+        int destCrc = target.checksum(fileInfo.fileName);
+        if (srcCrc != destCrc) {
+            FileInfo current = FileInfo.of(fileInfo.fileName, Files.readAttributes(srcFilePath, BasicFileAttributes.class));
+            if (current.size != fileInfo.size || current.lastModified != fileInfo.lastModified) {
+                logger.warn("Source changed while it was being copied, leaving it for the next run: {}", srcFilePath);
+                return false;
+            }
+            this.hashCache.remove(fileInfo.fileName);
+            throw new IOException(String.format("Checksum mismatch after copy of %s: source %08x, backup %08x",
+                    fileInfo.fileName, srcCrc, destCrc));
+        }
+        this.hashCache.put(fileInfo.fileName, fileInfo.size, fileInfo.lastModified, srcCrc);
+        this.fresh.add(fileInfo.fileName);
+        return true;
+    }
+
+    // Re-reads cached files for at most budgetMillis and returns the ones whose content no longer matches
+    public List<String> scrub(Target target, long budgetMillis, int threads) {
+        List<String> fileNames = this.hashCache.sortedFileNames();
+        if (fileNames.isEmpty() || budgetMillis <= 0) return Collections.emptyList();
+        List<String> freshNames = readFresh();
+        this.freshRead = true;
+        Set<String> freshSet = new HashSet<>(freshNames);
+        int total = freshNames.size() + fileNames.size();
+
+        // Continue after the last file checked by the previous run and wrap around at the end
+        String cursor = readCursor();
+        int start = cursor == null ? 0 : -Collections.binarySearch(fileNames, cursor + "\0") - 1;
+        if (start >= fileNames.size()) start = 0;
+
+        long deadline = System.currentTimeMillis() + budgetMillis;
+        List<String> corrupted = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "scrub-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ExecutorCompletionService<String> completion = new ExecutorCompletionService<>(executor);
+        int position = 0;
+        int submitted = 0;
+        int completed = 0;
+        int checked = 0;
+        String last = cursor;
+        try {
+            while (position < total && System.currentTimeMillis() < deadline) {
+                // Only a few files in flight, so the budget is not overrun by a long queue
+                if (submitted - completed >= threads * 2) {
+                    if (completion.take().get() != null) checked++;
+                    completed++;
+                }
+                String fileName;
+                if (position < freshNames.size()) fileName = freshNames.get(position);
+                else {
+                    fileName = fileNames.get((start + position - freshNames.size()) % fileNames.size());
+                    last = fileName;
+                }
+                position++;
+                // Already read back as a fresh copy
+                if (position > freshNames.size() && freshSet.contains(fileName)) continue;
+                completion.submit(() -> scrubFile(fileName, target, corrupted) ? fileName : null);
+                submitted++;
+            }
+            for (; completed < submitted; completed++) {
+                if (completion.take().get() != null) checked++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error("Scrub stopped", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Fresh copies the budget didn't reach come first again next time
+        for (int idx = position; idx < freshNames.size(); idx++) this.fresh.add(freshNames.get(idx));
+
+        writeCursor(last);
+        logger.info("Scrub checked {} of {} files, {} checksum mismatches", checked, fileNames.size(), corrupted.size());
+        return corrupted;
+    }
+
+    private List<String> readFresh() {
+        List<String> fileNames = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.freshPath), 1 << 16))) {
+            int count = in.readInt();
+            for (int idx = 0; idx < count; idx++) fileNames.add(in.readUTF());
+        } catch (NoSuchFileException e) {
+            // No copies were made since the last scrub
+        } catch (IOException e) {
+            // Only costs reading those copies back once the cursor gets to them
+            logger.warn("Unable to read the fresh copies from {}", this.freshPath, e);
+        }
+        return fileNames;
+    }
+
+    // Keeps the copies of this run for the scrub of the next one
+    public void save() throws IOException {
+        Files.createDirectories(this.freshPath.getParent());
+        Path tmp = this.freshPath.resolveSibling(this.freshPath.getFileName() + ".tmp");
+        // Nothing was scrubbed, what the previous run left stays fresh
+        if (!this.freshRead) this.fresh.addAll(readFresh());
+        List<String> fileNames = new ArrayList<>();
+        for (String fileName : this.fresh) {
+            if (this.hashCache.get(fileName) != null) fileNames.add(fileName);
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(fileNames.size());
+            for (String fileName : fileNames) out.writeUTF(fileName);
+        }
+        Files.move(tmp, this.freshPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Returns true if the file was actually read back
+    private boolean scrubFile(String fileName, Target target, List<String> corrupted) {
+        HashCache.Entry entry = this.hashCache.get(fileName);
+        if (entry == null) return false;
+        try {
+            if (!target.holds(fileName, entry.size, entry.lastModified)) {
+                // Replaced or removed since it was hashed
+                this.hashCache.remove(fileName);
+                return false;
+            }
+            int crc = target.checksum(fileName);
+            if (crc != entry.crc) {
+                logger.error("Checksum mismatch in backup of {}: expected {}, read {}", fileName,
+                        String.format("%08x", entry.crc), String.format("%08x", crc));
+                corrupted.add(fileName);
+            }
+            return true;
+        } catch (NoSuchFileException e) {
+            this.hashCache.remove(fileName);
+            return false;
+        } catch (IOException e) {
+            // Read errors on the backup disk are exactly what the scrub is looking for
+            logger.error("Unable to read backup of {}", fileName, e);
+            corrupted.add(fileName);
+            return true;
+        }
+    }
+
+    private String readCursor() {
+        try {
+            return new String(Files.readAllBytes(this.cursorPath), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.warn("Unable to read scrub cursor {}", this.cursorPath, e);
+            return null;
+        }
+    }
+
+    private void writeCursor(String fileName) {
+        if (fileName == null) return;
+        try {
+            Files.createDirectories(this.cursorPath.getParent());
+            Files.write(this.cursorPath, fileName.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            logger.warn("Unable to save scrub cursor {}", this.cursorPath, e);
+        }
+    }
+}
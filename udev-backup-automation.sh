@@ -30,9 +30,27 @@ APP_DIR="$HOME/Apps/Udev-Backup-Automation"
 notify-send -u normal -t 3000 "Backing up files" "Backup Process started by <b>udev</b> rule"
 
 cd $APP_DIR
-java -DsrcPath="$SRCPATH" -DdestPath="$DESTPATH" -Dassets="$ASSETS" -DtelegramReceiverID="$TELEGRAM_RECEIVER_ID" -DoutputDir="$APP_DIR" -jar udev-backup-automation-1.0-SNAPSHOT.jar
 
-if [ "$?" = "0" ]; then
+# Socket of the resident daemon (udev-backup-daemon.service), which already has everything loaded
+DAEMON_SOCKET="$APP_DIR/udev-backup.sock"
+
+STATUS=""
+if [ -S "$DAEMON_SOCKET" ] && command -v socat > /dev/null; then
+	# The daemon backs up to the destination sent with the request, wherever this disk got mounted
+	RESPONSE=$(printf 'backup %s\n' "$DESTPATH" | socat -t 86400 - UNIX-CONNECT:"$DAEMON_SOCKET")
+	case "$RESPONSE" in
+		"exit "*) STATUS="${RESPONSE#exit }" ;;
+	esac
+fi
+
+# No daemon, or a stale socket left behind by one that is not running: back up with a one-shot JVM
+if [ -z "$STATUS" ]; then
+	# Class data sharing archive built with: mvn -P appcds package, kept next to the jar
+	java -XX:SharedArchiveFile=udev-backup-automation-1.0-SNAPSHOT.jsa -Xshare:auto -DsrcPath="$SRCPATH" -DdestPath="$DESTPATH" -Dassets="$ASSETS" -DtelegramReceiverID="$TELEGRAM_RECEIVER_ID" -DoutputDir="$APP_DIR" -jar udev-backup-automation-1.0-SNAPSHOT.jar
+	STATUS=$?
+fi
+
+if [ "$STATUS" = "0" ]; then
 	notify-send -u normal -t 3000 "Backup Successful" "Details regarding the backup has been sent to you on <b>Telegram</b>"
 else
 	notify-send -u critical "Backup Failed" "Check logs for what went wrong inside: $APP_DIR"